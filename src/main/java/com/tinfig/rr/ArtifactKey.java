@@ -0,0 +1,107 @@
+package com.tinfig.rr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A typed name for an artifact processors pass to each other through a
+ * {@link Frame}. Each key is registered once (usually in a static field of the
+ * processor that produces it) and resolves to an array slot in every frame, so
+ * hand-offs on the hot path don't hash strings, check types reflectively, or
+ * box primitives.
+ * <p>
+ * Registered keys are also reachable by name through the string methods on
+ * {@link Frame} for code that hasn't moved to keys.
+ */
+public final class ArtifactKey<T> {
+	static enum Kind {
+		OBJECT, INT, DOUBLE
+	}
+
+	private static final Map<String, ArtifactKey<?>> byName = new HashMap<>();
+	private static final List<ArtifactKey<?>> all = new ArrayList<>();
+	private static final int[] slotCounts = new int[Kind.values().length];
+
+	private final String name;
+	private final Class<T> type;
+	private final Kind kind;
+	private final int slot;
+
+	private ArtifactKey(String name, Class<T> type, Kind kind, int slot) {
+		this.name = name;
+		this.type = type;
+		this.kind = kind;
+		this.slot = slot;
+	}
+
+	/**
+	 * Registers a key for object artifacts.
+	 */
+	public static <T> ArtifactKey<T> register(String name, Class<T> type) {
+		return register(name, type, Kind.OBJECT);
+	}
+
+	/**
+	 * Registers a key for an artifact stored as a primitive <code>int</code>
+	 * (see {@link Frame#getInt(ArtifactKey)}).
+	 */
+	public static ArtifactKey<Integer> registerInt(String name) {
+		return register(name, Integer.class, Kind.INT);
+	}
+
+	/**
+	 * Registers a key for an artifact stored as a primitive
+	 * <code>double</code> (see {@link Frame#getDouble(ArtifactKey)}).
+	 */
+	public static ArtifactKey<Double> registerDouble(String name) {
+		return register(name, Double.class, Kind.DOUBLE);
+	}
+
+	/**
+	 * @return the key registered with the name, or <code>null</code>
+	 */
+	public static synchronized ArtifactKey<?> forName(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * @return all the keys registered so far
+	 */
+	public static synchronized List<ArtifactKey<?>> getAll() {
+		return new ArrayList<>(all);
+	}
+
+	private static synchronized <T> ArtifactKey<T> register(String name, Class<T> type, Kind kind) {
+		Check.notBlank(name, "name");
+		Check.notNull(type, "type");
+		Check.isTrue(!byName.containsKey(name), "Artifact key " + name + " is already registered");
+
+		ArtifactKey<T> key = new ArtifactKey<>(name, type, kind, slotCounts[kind.ordinal()]++);
+		byName.put(name, key);
+		all.add(key);
+		return key;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Class<T> getType() {
+		return type;
+	}
+
+	Kind getKind() {
+		return kind;
+	}
+
+	int getSlot() {
+		return slot;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -1,6 +1,8 @@
 package com.tinfig.rr;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -17,11 +19,20 @@ import com.tinfig.rr.processors.DebugViewProcessor;
 public class Frame {
 	private String name;
 	private long timestamp;
+	private long processingStarted;
+	private ImagePool imagePool;
 	private IplImage videoImage;
 	private Map<String, IplImage> computedImages = new HashMap<>();
 	private Map<String, IplImage> debugImages = new HashMap<>();
 	private Map<String, Object> artifacts = new HashMap<>();
 
+	// Artifacts with registered keys, indexed by ArtifactKey.getSlot()
+	private Object[] objectSlots = new Object[0];
+	private int[] intSlots = new int[0];
+	private boolean[] intSlotsSet = new boolean[0];
+	private double[] doubleSlots = new double[0];
+	private boolean[] doubleSlotsSet = new boolean[0];
+
 	public Frame() {
 	}
 
@@ -33,6 +44,11 @@ public class Frame {
 		return name;
 	}
 
+	/**
+	 * @param timestamp
+	 *            the {@link System#nanoTime()} when the video image was
+	 *            captured
+	 */
 	public void setTimestamp(long timestamp) {
 		this.timestamp = timestamp;
 	}
@@ -41,6 +57,31 @@ public class Frame {
 		return timestamp;
 	}
 
+	/**
+	 * @param nanos
+	 *            the {@link System#nanoTime()} when the pipeline started on this
+	 *            frame
+	 */
+	public void setProcessingStarted(long nanos) {
+		this.processingStarted = nanos;
+	}
+
+	public long getProcessingStarted() {
+		return processingStarted;
+	}
+
+	/**
+	 * @param imagePool
+	 *            the pool processors borrow native images from
+	 */
+	public void setImagePool(ImagePool imagePool) {
+		this.imagePool = imagePool;
+	}
+
+	public ImagePool getImagePool() {
+		return imagePool;
+	}
+
 	public void setVideoImage(final IplImage image) {
 		videoImage = image;
 	}
@@ -81,17 +122,127 @@ public class Frame {
 		return filterMap(prefix, debugImages, IplImage.class);
 	}
 
+	/**
+	 * Gets an object artifact.
+	 * 
+	 * @return the artifact, or <code>null</code> if it hasn't been set
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(ArtifactKey<T> key) {
+		Check.isTrue(key.getKind() == ArtifactKey.Kind.OBJECT, key + " is not an object artifact");
+		int slot = key.getSlot();
+		return slot < objectSlots.length ? (T) objectSlots[slot] : null;
+	}
+
+	public <T> void set(ArtifactKey<T> key, T value) {
+		Check.isTrue(key.getKind() == ArtifactKey.Kind.OBJECT, key + " is not an object artifact");
+		int slot = key.getSlot();
+		if (slot >= objectSlots.length) {
+			objectSlots = Arrays.copyOf(objectSlots, slot + 1);
+		}
+		objectSlots[slot] = value;
+	}
+
+	/**
+	 * Gets an artifact registered with {@link ArtifactKey#registerInt(String)}.
+	 * 
+	 * @return the artifact, or 0 if it hasn't been set
+	 */
+	public int getInt(ArtifactKey<Integer> key) {
+		Check.isTrue(key.getKind() == ArtifactKey.Kind.INT, key + " is not an int artifact");
+		int slot = key.getSlot();
+		return slot < intSlots.length ? intSlots[slot] : 0;
+	}
+
+	public void setInt(ArtifactKey<Integer> key, int value) {
+		Check.isTrue(key.getKind() == ArtifactKey.Kind.INT, key + " is not an int artifact");
+		int slot = key.getSlot();
+		if (slot >= intSlots.length) {
+			intSlots = Arrays.copyOf(intSlots, slot + 1);
+			intSlotsSet = Arrays.copyOf(intSlotsSet, slot + 1);
+		}
+		intSlots[slot] = value;
+		intSlotsSet[slot] = true;
+	}
+
+	/**
+	 * Gets an artifact registered with
+	 * {@link ArtifactKey#registerDouble(String)}.
+	 * 
+	 * @return the artifact, or 0 if it hasn't been set
+	 */
+	public double getDouble(ArtifactKey<Double> key) {
+		Check.isTrue(key.getKind() == ArtifactKey.Kind.DOUBLE, key + " is not a double artifact");
+		int slot = key.getSlot();
+		return slot < doubleSlots.length ? doubleSlots[slot] : 0;
+	}
+
+	public void setDouble(ArtifactKey<Double> key, double value) {
+		Check.isTrue(key.getKind() == ArtifactKey.Kind.DOUBLE, key + " is not a double artifact");
+		int slot = key.getSlot();
+		if (slot >= doubleSlots.length) {
+			doubleSlots = Arrays.copyOf(doubleSlots, slot + 1);
+			doubleSlotsSet = Arrays.copyOf(doubleSlotsSet, slot + 1);
+		}
+		doubleSlots[slot] = value;
+		doubleSlotsSet[slot] = true;
+	}
+
+	/**
+	 * @return the map of artifacts that don't have a registered
+	 *         {@link ArtifactKey}
+	 */
 	public Map<String, Object> getArtifacts() {
 		return artifacts;
 	}
 
+	/**
+	 * Gets the artifacts whose names start with the prefix, including ones
+	 * with registered keys. Slower than looking up keys; not for the hot path.
+	 */
 	public <T> List<Entry<String, T>> getArtifacts(String prefix, Class<? extends T> clazz) {
-		return filterMap(prefix, artifacts, clazz);
+		List<Entry<String, T>> ret = filterMap(prefix, artifacts, clazz);
+		for (ArtifactKey<?> key : ArtifactKey.getAll()) {
+			if (key.getName().startsWith(prefix)) {
+				T value = getArtifact(key, clazz);
+				if (value != null) {
+					ret.add(new SimpleImmutableEntry<String, T>(key.getName(), value));
+				}
+			}
+		}
+		return ret;
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Gets an artifact by name, whether or not it has a registered key.
+	 * Primitive artifacts are boxed. Prefer {@link #get(ArtifactKey)} and
+	 * friends on the hot path.
+	 */
 	public <T> T getArtifact(String name, Class<? extends T> clazz) {
-		Object o = artifacts.get(name);
+		ArtifactKey<?> key = ArtifactKey.forName(name);
+		if (key != null) {
+			T value = getArtifact(key, clazz);
+			if (value != null) {
+				return value;
+			}
+		}
+		return cast(artifacts.get(name), clazz);
+	}
+
+	private <T> T getArtifact(ArtifactKey<?> key, Class<? extends T> clazz) {
+		int slot = key.getSlot();
+		switch (key.getKind()) {
+		case INT:
+			return slot < intSlots.length && intSlotsSet[slot] ? cast(intSlots[slot], clazz) : null;
+		case DOUBLE:
+			return slot < doubleSlots.length && doubleSlotsSet[slot] ? cast(doubleSlots[slot], clazz) : null;
+		default:
+			return cast(get(key), clazz);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T cast(Object o, Class<? extends T> clazz) {
 		if (o != null && clazz.isAssignableFrom(o.getClass())) {
 			return (T) o;
 		}
@@ -102,11 +253,16 @@ public class Frame {
 	private <T> List<Entry<String, T>> filterMap(String keyPrefix, Map<String, ?> map, Class<? extends T> clazz) {
 		List<Entry<String, T>> ret = new ArrayList<>();
 		for (Entry<String, ?> e : map.entrySet()) {
-			if (e.getKey().startsWith(keyPrefix) && clazz == e.getValue().getClass()) {
+			if (e.getKey().startsWith(keyPrefix) && cast(e.getValue(), clazz) != null) {
 				// Safe to cast because we just checked that it's assignable
 				ret.add((Entry<String, T>) e);
 			}
 		}
 		return ret;
 	}
+
+	@Override
+	public String toString() {
+		return "Frame " + name;
+	}
 }
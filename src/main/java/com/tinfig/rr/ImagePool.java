@@ -0,0 +1,342 @@
+package com.tinfig.rr;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMemStorage;
+import com.googlecode.javacv.cpp.opencv_core.CvSize;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * Hands out native images and memory storages, keeping track of who holds
+ * them.
+ * <p>
+ * Images are pooled by size, depth, and channel count: an image returned with
+ * {@link #release(Object, IplImage)} is handed to the next borrower asking for
+ * the same shape, so scratch buffers one processor only needs during
+ * {@link Processor#process(Frame)} can be reused by another processor (or
+ * another camera) instead of each keeping its own. Every borrowed image and
+ * storage is charged to an owner (usually the processor, or the
+ * {@link Frame} for per-frame images) so native memory use can be broken down
+ * and anything not given back by shutdown can be reported as a leak.
+ * <p>
+ * Once every shape in use has been created, borrowing and releasing allocate
+ * nothing on the Java heap: shapes are looked up with a reused probe, and loan
+ * records and owners' accounts are recycled.
+ * <p>
+ * All methods are thread-safe; one pool is shared by every camera.
+ */
+public class ImagePool {
+	private final Map<Key, Shape> shapes = new HashMap<>();
+	private final Map<IplImage, Loan> loans = new IdentityHashMap<>();
+	private final Map<CvMemStorage, Object> storages = new IdentityHashMap<>();
+	private final Map<Object, Account> accounts = new IdentityHashMap<>();
+
+	// Looks shapes up without creating a key each time
+	private final Key probe = new Key();
+	private final ArrayDeque<Loan> spareLoans = new ArrayDeque<>();
+	private final ArrayDeque<Account> spareAccounts = new ArrayDeque<>();
+
+	private long pooledBytes;
+	private long borrowedBytes;
+	private long created;
+	private long reused;
+
+	/**
+	 * Borrows an image. The contents are undefined; clear it if that matters.
+	 *
+	 * @param owner
+	 *            who the image is charged to until it's released
+	 */
+	public synchronized IplImage borrow(Object owner, CvSize size, int depth, int channels) {
+		Check.notNull(owner, "owner");
+
+		Shape shape = shapes.get(probe.set(size.width(), size.height(), depth, channels));
+		if (shape == null) {
+			shape = new Shape();
+			shapes.put(new Key().set(size.width(), size.height(), depth, channels), shape);
+		}
+
+		IplImage image = shape.images.poll();
+		if (image == null) {
+			image = IplImage.create(size, depth, channels);
+			created++;
+		} else {
+			pooledBytes -= image.imageSize();
+			reused++;
+		}
+
+		long bytes = image.imageSize();
+		Loan loan = spareLoans.poll();
+		if (loan == null) {
+			loan = new Loan();
+		}
+		loan.owner = owner;
+		loan.shape = shape;
+		loans.put(image, loan);
+		Account account = account(owner);
+		account.images++;
+		account.bytes += bytes;
+		borrowedBytes += bytes;
+		return image;
+	}
+
+	/**
+	 * Gives an image back to the pool. The owner must not use it afterwards.
+	 */
+	public synchronized void release(Object owner, IplImage image) {
+		Loan loan = loans.get(image);
+		Check.isTrue(loan != null, "Image was not borrowed from this pool");
+		Check.isTrue(loan.owner == owner, "Image is owned by " + loan.owner + ", not " + owner);
+
+		loans.remove(image);
+		long bytes = image.imageSize();
+		unaccount(owner, 1, bytes);
+		borrowedBytes -= bytes;
+
+		loan.shape.images.push(image);
+		pooledBytes += bytes;
+		loan.owner = null;
+		loan.shape = null;
+		spareLoans.push(loan);
+	}
+
+	/**
+	 * Creates a memory storage charged to the owner. Storages aren't pooled
+	 * because they grow to fit whatever their owner puts in them.
+	 */
+	public synchronized CvMemStorage createStorage(Object owner) {
+		Check.notNull(owner, "owner");
+
+		CvMemStorage storage = CvMemStorage.create();
+		storages.put(storage, owner);
+		account(owner).storages++;
+		return storage;
+	}
+
+	public synchronized void releaseStorage(Object owner, CvMemStorage storage) {
+		Object storageOwner = storages.get(storage);
+		Check.isTrue(storageOwner != null, "Storage was not created by this pool");
+		Check.isTrue(storageOwner == owner, "Storage is owned by " + storageOwner + ", not " + owner);
+
+		storages.remove(storage);
+		account(owner).storages--;
+		removeIfEmpty(owner);
+		opencv_core.cvReleaseMemStorage(storage);
+	}
+
+	/**
+	 * Returns everything the owner still holds: images go back to the pool,
+	 * storages are released.
+	 */
+	public synchronized void releaseAll(Object owner) {
+		for (IplImage image : imagesOwnedBy(owner)) {
+			release(owner, image);
+		}
+		for (CvMemStorage storage : storagesOwnedBy(owner)) {
+			releaseStorage(owner, storage);
+		}
+	}
+
+	/**
+	 * Prints what each owner still holds. Call once everything has been
+	 * stopped, when anything still borrowed is a leak.
+	 *
+	 * @return <code>true</code> if there were leaks
+	 */
+	public synchronized boolean reportLeaks() {
+		for (String line : getUsage()) {
+			System.err.println("Leaked native memory: " + line);
+		}
+		return !accounts.isEmpty();
+	}
+
+	/**
+	 * Frees every image and storage, whether or not it was returned. The pool
+	 * may be used again afterwards.
+	 */
+	public synchronized void clear() {
+		for (Shape shape : shapes.values()) {
+			for (IplImage image : shape.images) {
+				image.release();
+			}
+		}
+		for (IplImage image : loans.keySet()) {
+			image.release();
+		}
+		for (CvMemStorage storage : storages.keySet()) {
+			opencv_core.cvReleaseMemStorage(storage);
+		}
+
+		shapes.clear();
+		loans.clear();
+		storages.clear();
+		accounts.clear();
+		pooledBytes = 0;
+		borrowedBytes = 0;
+	}
+
+	/**
+	 * @return bytes of image data currently borrowed
+	 */
+	public synchronized long getBorrowedBytes() {
+		return borrowedBytes;
+	}
+
+	/**
+	 * @return bytes of image data waiting in the pool to be borrowed again
+	 */
+	public synchronized long getPooledBytes() {
+		return pooledBytes;
+	}
+
+	/**
+	 * @return how many borrows needed a new image
+	 */
+	public synchronized long getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return how many borrows were satisfied from the pool
+	 */
+	public synchronized long getReused() {
+		return reused;
+	}
+
+	/**
+	 * @return bytes of image data the owner currently holds
+	 */
+	public synchronized long getBytes(Object owner) {
+		Account account = accounts.get(owner);
+		return account != null ? account.bytes : 0;
+	}
+
+	/**
+	 * @return one line per owner describing what it holds, largest first
+	 */
+	public synchronized String[] getUsage() {
+		List<Map.Entry<Object, Account>> entries = new ArrayList<>(accounts.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<Object, Account>>() {
+			@Override
+			public int compare(Map.Entry<Object, Account> a, Map.Entry<Object, Account> b) {
+				return Long.compare(b.getValue().bytes, a.getValue().bytes);
+			}
+		});
+
+		String[] usage = new String[entries.size()];
+		for (int i = 0; i < usage.length; i++) {
+			Account account = entries.get(i).getValue();
+			usage[i] = String.format("%s: %d images (%.1f MiB), %d storages", entries.get(i).getKey(),
+					account.images, account.bytes / (1024.0 * 1024.0), account.storages);
+		}
+		return usage;
+	}
+
+	private List<IplImage> imagesOwnedBy(Object owner) {
+		List<IplImage> ret = new ArrayList<>();
+		for (Map.Entry<IplImage, Loan> e : loans.entrySet()) {
+			if (e.getValue().owner == owner) {
+				ret.add(e.getKey());
+			}
+		}
+		return ret;
+	}
+
+	private List<CvMemStorage> storagesOwnedBy(Object owner) {
+		List<CvMemStorage> ret = new ArrayList<>();
+		for (Map.Entry<CvMemStorage, Object> e : storages.entrySet()) {
+			if (e.getValue() == owner) {
+				ret.add(e.getKey());
+			}
+		}
+		return ret;
+	}
+
+	private Account account(Object owner) {
+		Account account = accounts.get(owner);
+		if (account == null) {
+			account = spareAccounts.poll();
+			if (account == null) {
+				account = new Account();
+			}
+			accounts.put(owner, account);
+		}
+		return account;
+	}
+
+	private void unaccount(Object owner, int images, long bytes) {
+		Account account = account(owner);
+		account.images -= images;
+		account.bytes -= bytes;
+		removeIfEmpty(owner);
+	}
+
+	private void removeIfEmpty(Object owner) {
+		Account account = accounts.get(owner);
+		if (account != null && account.images == 0 && account.storages == 0) {
+			accounts.remove(owner);
+			account.bytes = 0;
+			spareAccounts.push(account);
+		}
+	}
+
+	/**
+	 * Only changed by {@link ImagePool#probe}; keys in the map are never
+	 * changed once they're put there.
+	 */
+	private static final class Key {
+		private int width;
+		private int height;
+		private int depth;
+		private int channels;
+
+		Key set(int width, int height, int depth, int channels) {
+			this.width = width;
+			this.height = height;
+			this.depth = depth;
+			this.channels = channels;
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((width * 31 + height) * 31 + depth) * 31 + channels;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return width == other.width && height == other.height && depth == other.depth
+					&& channels == other.channels;
+		}
+	}
+
+	/**
+	 * The free images of one shape.
+	 */
+	private static final class Shape {
+		private final ArrayDeque<IplImage> images = new ArrayDeque<>();
+	}
+
+	private static final class Loan {
+		private Object owner;
+		private Shape shape;
+	}
+
+	private static final class Account {
+		private int images;
+		private long bytes;
+		private int storages;
+	}
+}
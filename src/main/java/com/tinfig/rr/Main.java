@@ -6,10 +6,11 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.UIManager;
 
@@ -23,19 +24,31 @@ import org.apache.commons.configuration.ConfigurationException;
 
 import com.googlecode.javacv.cpp.opencv_core;
 import com.googlecode.javacv.cpp.opencv_core.CvFont;
+import com.tinfig.rr.metrics.CameraMetrics;
+import com.tinfig.rr.metrics.ImagePoolMetrics;
+import com.tinfig.rr.metrics.Metrics;
+import com.tinfig.rr.metrics.ProcessorMetrics;
+import com.tinfig.rr.metrics.SoundLatency;
 import com.tinfig.rr.processors.ControlsProcessor;
 import com.tinfig.rr.processors.DebugViewProcessor;
 import com.tinfig.rr.processors.FlowDetector;
 import com.tinfig.rr.processors.FlowTracker;
 import com.tinfig.rr.processors.MotionDetector;
+import com.tinfig.rr.processors.MotionGate;
 import com.tinfig.rr.processors.OpenCvFrameGrabberProcessor;
+import com.tinfig.rr.sources.AsyncFrameSource;
+import com.tinfig.rr.sources.CameraFrameSource;
+import com.tinfig.rr.sources.FrameSource;
+import com.tinfig.rr.sources.ImageSequenceFrameSource;
+import com.tinfig.rr.sources.Pacing;
+import com.tinfig.rr.sources.ReplayFrameSource;
+import com.tinfig.rr.sources.VideoFileFrameSource;
 
 public class Main {
 	public static CvFont FONT = new CvFont();
 
 	public static void main(final String[] args) {
 		try {
-			UIManager.setLookAndFeel("javax.swing.plaf.metal.MetalLookAndFeel");
 			new Main(args).run();
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -48,8 +61,19 @@ public class Main {
 
 	// Parsed command line options
 	private int[] devices = new int[] { 0 };
+	private List<File> files = new ArrayList<>();
+	private Pacing pacing = Pacing.REALTIME;
+	private double fixedFrameRate;
+	private double sequenceFrameRate = 30;
+	private boolean loop;
+	private double targetFrameRate;
+	private boolean pipelined;
+	private boolean headless;
 	private File soundsDir = new File("../raleigh-rampage-sounds");
-	private boolean keepProcessing = true;
+	private volatile boolean keepProcessing = true;
+	private final CountDownLatch finished = new CountDownLatch(1);
+	// Runners whose sources haven't run out yet
+	private final Map<FrameSource, PipelineRunner> activeRunners = new IdentityHashMap<>();
 
 	public Main(final String[] args) throws ConfigurationException {
 		this.args = args;
@@ -59,84 +83,156 @@ public class Main {
 		keepProcessing = false;
 	}
 
+	public boolean isProcessing() {
+		return keepProcessing;
+	}
+
+	/**
+	 * Stops the pipeline reading from the source, which has run out of input,
+	 * and stops processing altogether once every source has.
+	 */
+	public synchronized void endOfInput(FrameSource source) {
+		PipelineRunner runner = activeRunners.remove(source);
+		if (runner != null) {
+			runner.endOfInput();
+		}
+		if (activeRunners.isEmpty()) {
+			stopProcessing();
+		}
+	}
+
 	public void run() throws Exception {
+		try {
+			runPipelines();
+		} finally {
+			finished.countDown();
+		}
+	}
+
+	private void runPipelines() throws Exception {
 		parseArguments(args);
 
+		if (headless) {
+			// Must be set before anything touches AWT
+			System.setProperty("java.awt.headless", "true");
+		} else {
+			UIManager.setLookAndFeel("javax.swing.plaf.metal.MetalLookAndFeel");
+		}
+
+		// Let Ctrl-C (the only way to stop when headless) save settings
+		Runtime.getRuntime().addShutdownHook(new Thread("shutdown") {
+			@Override
+			public void run() {
+				stopProcessing();
+				try {
+					finished.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// Exit anyway
+				}
+			}
+		});
+
 		opencv_core.cvInitFont(FONT, opencv_core.CV_FONT_HERSHEY_PLAIN, 1, 1, 0, 1, opencv_core.CV_AA);
 
 		System.out.println("Loading effects");
 
+		List<FrameSource> sources = createSources();
+		String[] sourceNames = new String[sources.size()];
+		for (int i = 0; i < sourceNames.length; i++) {
+			sourceNames[i] = sources.get(i).getName();
+		}
+
 		File samplerSettingsFile = new File("sampler.json");
 		Settings samplerSettings = Settings.load(samplerSettingsFile);
-		final Sampler sampler = new Sampler();
-		sampler.start(soundsDir, samplerSettings, devices);
-
-		Timer samplerTimer = new Timer("sampler", true);
-		samplerTimer.scheduleAtFixedRate(new TimerTask() {
-			@Override
-			public void run() {
-				sampler.process();
-			}
-		}, 0, 50);
+		Sampler sampler = new Sampler();
+		sampler.start(soundsDir, samplerSettings, sourceNames, headless);
 
 		System.out.println("Starting camera processors");
 
 		List<Processor> allProcessors = new ArrayList<>();
-		List<Timer> allTimers = new ArrayList<>();
+		List<PipelineRunner> allRunners = new ArrayList<>();
+		Metrics metrics = new Metrics();
+		ImagePool imagePool = new ImagePool();
+		metrics.register(new ImagePoolMetrics(imagePool), "ImagePool", null, null);
 		List<Settings> allSettings = new ArrayList<>();
 		Map<Processor, Settings> processorSettings = new HashMap<>();
 
-		// Start a processor pipeline for each camera
-		for (int i = 0; i < devices.length; i++) {
-			int device = devices[i];
+		// Start a processor pipeline for each camera (or replayed input)
+		for (int i = 0; i < sources.size(); i++) {
+			FrameSource source = sources.get(i);
 
-			File settingsFile = new File(device + ".json");
+			File settingsFile = new File(source.getName() + ".json");
 			Settings settings = Settings.load(settingsFile);
 			allSettings.add(settings);
 
 			final Frame frame = new Frame();
-			frame.setName(Integer.toString(device));
+			frame.setName(source.getName());
+			frame.setImagePool(imagePool);
 
-			final Processor[] processors = createProcessors(device, i, sampler);
+			final Processor[] processors = createProcessors(source, i, sampler);
 			for (Processor processor : processors) {
 				processor.start(frame, settings);
 				allProcessors.add(processor);
 				processorSettings.put(processor, settings);
 			}
 
-			System.out.println("Started for device " + device);
-
-			Timer timer = new Timer("capture", true);
-			allTimers.add(timer);
-			timer.scheduleAtFixedRate(new TimerTask() {
-				@Override
-				public void run() {
-					frame.getDebugImages().clear();
-					for (Processor p : processors) {
-						try {
-							p.process(frame);
-						} catch (Throwable e) {
-							e.printStackTrace();
-						}
-					}
-				}
-			}, 0, 1);
+			System.out.println("Started for " + source.getName());
+
+			PipelineRunner runner;
+			if (pipelined) {
+				runner = new StagedPipelineRunner(this, frame, processors, targetFrameRate);
+			} else {
+				runner = new SerialPipelineRunner(this, frame, processors, targetFrameRate);
+			}
+			allRunners.add(runner);
+			synchronized (this) {
+				activeRunners.put(source, runner);
+			}
+
+			CameraMetrics cameraMetrics = new CameraMetrics(runner, source);
+			runner.setFrameMetrics(cameraMetrics);
+			metrics.register(cameraMetrics, "Camera", source.getName(), null);
+			metrics.register(sampler.getSoundLatency(i), "SoundLatency", source.getName(), null);
+			for (int j = 0; j < processors.length; j++) {
+				metrics.register(runner.getProcessorMetrics()[j], "Processor", source.getName(), processors[j]
+						.getClass().getSimpleName());
+			}
+
+			runner.start();
 		}
 
 		while (keepProcessing) {
 			Thread.sleep(500);
 		}
 
-		samplerTimer.cancel();
-		for (Timer timer : allTimers) {
-			timer.cancel();
+		for (int i = 0; i < allRunners.size(); i++) {
+			PipelineRunner runner = allRunners.get(i);
+			runner.stop();
+			printMetrics(runner);
+
+			SoundLatency latency = sampler.getSoundLatency(i);
+			System.out.println(String.format("  capture to trigger p50 %.2f ms, p99 %.2f ms; to audible p50 %.2f ms, "
+					+ "p99 %.2f ms", latency.getTriggerP50Millis(), latency.getTriggerP99Millis(),
+					latency.getAudibleP50Millis(), latency.getAudibleP99Millis()));
 		}
 
+		metrics.unregisterAll();
+
 		sampler.stop(samplerSettings);
 		for (Processor processor : allProcessors) {
 			processor.stop(processorSettings.get(processor));
 		}
 
+		// Frames own their images until the end; anything else still borrowed
+		// wasn't given back by the processor that took it
+		for (PipelineRunner runner : allRunners) {
+			for (Frame frame : runner.getFrames()) {
+				imagePool.releaseAll(frame);
+			}
+		}
+		imagePool.reportLeaks();
+		imagePool.clear();
+
 		samplerSettings.save();
 		for (Settings settings : allSettings) {
 			settings.save();
@@ -145,15 +241,63 @@ public class Main {
 		System.out.println("Exiting");
 	}
 
-	private Processor[] createProcessors(int device, int deviceIndex, Sampler sampler) throws ConfigurationException {
+	private void printMetrics(PipelineRunner runner) {
+		System.out.println("Processed " + runner.getFramesProcessed() + " frames for " + runner.getName());
+		printMetrics("  frame", runner.getFrameMetrics());
+		for (int i = 0; i < runner.processors.length; i++) {
+			printMetrics("  " + runner.processors[i].getClass().getSimpleName(), runner.getProcessorMetrics()[i]);
+		}
+	}
+
+	private void printMetrics(String label, ProcessorMetrics metrics) {
+		System.out.println(String.format("%s: mean %.2f ms, p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d errors", label,
+				metrics.getMeanMillis(), metrics.getP50Millis(), metrics.getP99Millis(), metrics.getMaxMillis(),
+				metrics.getErrors()));
+	}
+
+	private List<FrameSource> createSources() {
+		List<FrameSource> sources = new ArrayList<>();
+		for (int device : devices) {
+			sources.add(new AsyncFrameSource(new CameraFrameSource(device)));
+		}
+		for (File file : files) {
+			ReplayFrameSource source;
+			if (file.isDirectory()) {
+				source = new ImageSequenceFrameSource(file, sequenceFrameRate);
+			} else {
+				source = new VideoFileFrameSource(file);
+			}
+			source.setPacing(pacing, fixedFrameRate);
+			source.setLoop(loop);
+
+			// Replaying as fast as possible must not drop frames, otherwise
+			// capture on its own thread like a camera
+			if (pacing == Pacing.NATIVE) {
+				sources.add(source);
+			} else {
+				sources.add(new AsyncFrameSource(source));
+			}
+		}
+		return sources;
+	}
+
+	private Processor[] createProcessors(FrameSource source, int deviceIndex, Sampler sampler)
+			throws ConfigurationException {
 		final List<Processor> processors = new ArrayList<Processor>();
 
-		processors.add(new ControlsProcessor(this));
-		processors.add(new OpenCvFrameGrabberProcessor(device));
+		if (!headless) {
+			processors.add(new ControlsProcessor(this));
+		}
+		processors.add(new OpenCvFrameGrabberProcessor(this, source));
+		processors.add(new MotionGate());
 		processors.add(new MotionDetector());
 		processors.add(new FlowDetector());
-		processors.add(new FlowTracker(deviceIndex, sampler));
-		processors.add(new DebugViewProcessor());
+		FlowTracker flowTracker = new FlowTracker(deviceIndex);
+		flowTracker.addListener(sampler);
+		processors.add(flowTracker);
+		if (!headless) {
+			processors.add(new DebugViewProcessor());
+		}
 
 		return processors.toArray(new Processor[processors.size()]);
 	}
@@ -163,7 +307,18 @@ public class Main {
 
 		Options options = new Options();
 		options.addOption("d", "device", true, "Camera device number (can be specified multiple times) (default 0)");
+		options.addOption("f", "file", true,
+				"Video file or directory of images to replay instead of a camera (can be specified multiple times)");
+		options.addOption("p", "pace", true,
+				"Replay pacing: \"native\" (as fast as possible), \"realtime\", or a frame rate (default realtime)");
+		options.addOption("r", "sequence-rate", true, "Frame rate images in a directory were recorded at (default 30)");
+		options.addOption("l", "loop", false, "Replay input files forever");
+		options.addOption("F", "fps", true, "Maximum frames per second to process per camera (default unlimited)");
+		options.addOption("P", "pipelined", false,
+				"Run each processor on its own thread so consecutive frames overlap (uses more cores per camera)");
 		options.addOption("h", "help", false, "Shows help");
+		options.addOption("H", "headless", false,
+				"Run without any windows; tune with the settings files and stop with Ctrl-C");
 		options.addOption("s", "sounds", true, "Directory containing the sounds (raleigh-rampage-sounds repo)");
 
 		CommandLine line = parser.parse(options, args);
@@ -177,6 +332,43 @@ public class Main {
 			System.out.println("Using devices " + Arrays.toString(devices));
 		}
 
+		if (line.hasOption("file")) {
+			for (String fileString : line.getOptionValues("file")) {
+				files.add(new File(fileString));
+			}
+			System.out.println("Replaying " + files);
+
+			// Only use cameras when asked for
+			if (!line.hasOption("device")) {
+				devices = new int[0];
+			}
+		}
+
+		if (line.hasOption("pace")) {
+			String pace = line.getOptionValue("pace");
+			if (pace.equalsIgnoreCase("native")) {
+				pacing = Pacing.NATIVE;
+			} else if (pace.equalsIgnoreCase("realtime")) {
+				pacing = Pacing.REALTIME;
+			} else {
+				pacing = Pacing.FIXED;
+				fixedFrameRate = Double.parseDouble(pace);
+			}
+		}
+
+		if (line.hasOption("sequence-rate")) {
+			sequenceFrameRate = Double.parseDouble(line.getOptionValue("sequence-rate"));
+		}
+
+		loop = line.hasOption("loop");
+
+		if (line.hasOption("fps")) {
+			targetFrameRate = Double.parseDouble(line.getOptionValue("fps"));
+		}
+
+		pipelined = line.hasOption("pipelined");
+		headless = line.hasOption("headless");
+
 		if (line.hasOption("help")) {
 			new HelpFormatter().printHelp(getClass().getName(), options);
 			System.exit(0);
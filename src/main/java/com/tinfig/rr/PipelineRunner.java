@@ -0,0 +1,156 @@
+package com.tinfig.rr;
+
+import com.tinfig.rr.metrics.ProcessorMetrics;
+
+/**
+ * Runs the processor pipeline for one camera (or replayed input) on dedicated
+ * threads. Frames run back-to-back, or no faster than a target frame rate when
+ * one is set.
+ */
+public abstract class PipelineRunner {
+	protected final Main main;
+	protected final Frame frame;
+	protected final Processor[] processors;
+	protected final ProcessorMetrics[] processorMetrics;
+	private ProcessorMetrics frameMetrics = new ProcessorMetrics();
+
+	private final long framePeriodNanos;
+	private long nextFrameNanos;
+
+	private volatile long framesProcessed;
+	private volatile boolean inputEnded;
+
+	/**
+	 * @param targetFrameRate
+	 *            the maximum frame rate, or 0 to run frames back-to-back
+	 */
+	protected PipelineRunner(Main main, Frame frame, Processor[] processors, double targetFrameRate) {
+		this.main = Check.notNull(main, "main");
+		this.frame = Check.notNull(frame, "frame");
+		this.processors = Check.notEmpty(processors, "processors");
+		this.framePeriodNanos = targetFrameRate > 0 ? (long) (1000000000L / targetFrameRate) : 0;
+
+		processorMetrics = new ProcessorMetrics[processors.length];
+		for (int i = 0; i < processorMetrics.length; i++) {
+			processorMetrics[i] = new ProcessorMetrics();
+		}
+	}
+
+	public String getName() {
+		return frame.getName();
+	}
+
+	public abstract void start();
+
+	/**
+	 * Stops the pipeline threads and waits for them to finish the frame in
+	 * progress.
+	 */
+	public abstract void stop() throws InterruptedException;
+
+	/**
+	 * @return the number of frames waiting between pipeline stages
+	 */
+	public abstract int getQueueDepth();
+
+	/**
+	 * @return every {@link Frame} this runner cycles through
+	 */
+	public abstract Frame[] getFrames();
+
+	/**
+	 * Stops this pipeline reading input after the frame in progress because
+	 * its input ran out, leaving the other cameras running. Frames already
+	 * read still go through the rest of the pipeline. Safe to call from the
+	 * pipeline threads.
+	 */
+	public void endOfInput() {
+		inputEnded = true;
+	}
+
+	public long getFramesProcessed() {
+		return framesProcessed;
+	}
+
+	/**
+	 * @return metrics for each processor, in the same order as the processors
+	 */
+	public ProcessorMetrics[] getProcessorMetrics() {
+		return processorMetrics;
+	}
+
+	/**
+	 * Sets where whole-frame timings are recorded. Call before
+	 * {@link #start()}.
+	 */
+	public void setFrameMetrics(ProcessorMetrics frameMetrics) {
+		this.frameMetrics = Check.notNull(frameMetrics, "frameMetrics");
+	}
+
+	public ProcessorMetrics getFrameMetrics() {
+		return frameMetrics;
+	}
+
+	/**
+	 * @return <code>true</code> once {@link #endOfInput()} has been called
+	 */
+	protected boolean isInputEnded() {
+		return inputEnded;
+	}
+
+	protected boolean isProcessing() {
+		return main.isProcessing() && !inputEnded && !Thread.currentThread().isInterrupted();
+	}
+
+	protected void frameStarted(Frame frame) {
+		frame.setProcessingStarted(System.nanoTime());
+		frame.getDebugImages().clear();
+	}
+
+	protected void frameCompleted(Frame frame) {
+		framesProcessed++;
+		frameMetrics.record(System.nanoTime() - frame.getProcessingStarted(), false);
+	}
+
+	/**
+	 * Runs one processor on a frame, logging (but otherwise ignoring) its
+	 * errors so one bad frame doesn't stop the pipeline.
+	 * 
+	 * @param index
+	 *            the processor's index in {@link #processors}
+	 */
+	protected void runProcessor(int index, Frame frame) {
+		boolean failed = false;
+		long started = System.nanoTime();
+		try {
+			processors[index].process(frame);
+		} catch (Throwable e) {
+			failed = true;
+			e.printStackTrace();
+		}
+		processorMetrics[index].record(System.nanoTime() - started, failed);
+	}
+
+	/**
+	 * Sleeps until the next frame is due when running at a target frame rate.
+	 * Frames that run late start the schedule over instead of bunching up to
+	 * catch up.
+	 */
+	protected void waitForNextFrame() throws InterruptedException {
+		if (framePeriodNanos == 0) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		if (nextFrameNanos == 0 || now - nextFrameNanos > framePeriodNanos) {
+			nextFrameNanos = now;
+		}
+
+		long sleepNanos = nextFrameNanos - now;
+		if (sleepNanos > 0) {
+			Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+		}
+
+		nextFrameNanos += framePeriodNanos;
+	}
+}
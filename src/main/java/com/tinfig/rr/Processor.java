@@ -40,6 +40,11 @@ public abstract class Processor {
 	 */
 	public abstract void process(Frame frame) throws ConfigurationException;
 
+	@Override
+	public String toString() {
+		return getClass().getSimpleName();
+	}
+
 	public static JTextArea createText(Container container) {
 		final JTextArea text = new JTextArea();
 		container.add(text);
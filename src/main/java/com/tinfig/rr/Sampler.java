@@ -7,10 +7,15 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
 import java.util.Random;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.sound.sampled.UnsupportedAudioFileException;
 import javax.swing.BoxLayout;
@@ -20,6 +25,7 @@ import javax.swing.JPanel;
 import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
 import javax.swing.JSlider;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -38,16 +44,21 @@ import org.apache.commons.configuration.ConfigurationException;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import com.googlecode.javacv.CanvasFrame;
+import com.tinfig.rr.metrics.SoundLatency;
+import com.tinfig.rr.processors.FlowListener;
 import com.tinfig.rr.processors.FlowTracker.FlowSize;
 
-public class Sampler {
+public class Sampler implements FlowListener {
 	private static final String LARGE_DAMAGE_POINTS = "sampler.largeDamagePoints";
-	private static final String MEDIUM_DAMAGE_POINTS = "sampler.largeDamagePoints";
-	private static final String SMALL_DAMAGE_POINTS = "sampler.largeDamagePoints";
+	private static final String MEDIUM_DAMAGE_POINTS = "sampler.mediumDamagePoints";
+	private static final String SMALL_DAMAGE_POINTS = "sampler.smallDamagePoints";
 
 	private static final String MILD_CHAOS_POINTS = "sampler.mildChaosPoints";
 	private static final String HEAVY_CHAOS_POINTS = "sampler.heavyChaosPoints";
 
+	private static final String MONSTER = "sampler.monster";
+	private static final String HEADLESS_PHASE = "sampler.headlessPhase";
+
 	private static enum Category {
 		// Ambient, looped
 		RECONSTRUCTION,
@@ -87,11 +98,26 @@ public class Sampler {
 		AMBIENT, INTRO, FULL, EFFECT_LOW, EFFECT_MEDIUM, EFFECT_HIGH,
 	}
 
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
 	private final Random random = new Random();
 
+	// Flow events and control changes, run in order on the sampler thread so
+	// only it touches the score, phase and sounds
+	private final Queue<Runnable> events = new ConcurrentLinkedQueue<>();
+	private Thread thread;
+	private volatile boolean running;
+	private FlowSize tickPeak = FlowSize.NONE;
+
 	private AudioContext ac;
 
 	private FlowSize[] deviceFlow;
+	// The flow grid cell each device's activity is in, or -1 for the whole
+	// frame
+	private int[] deviceRegion;
+	private long[] deviceCaptureNanos;
+	private SoundLatency[] deviceLatency;
+	private long outputLatencyNanos;
 	private JLabel[] deviceStatusLabels;
 	private CanvasFrame controlFrame;
 
@@ -102,7 +128,7 @@ public class Sampler {
 	private int mildChaosPoints = 500;
 	private int heavyChaosPoints = 1500;
 
-	private Monster monster = Monster.LIZARD;
+	private volatile Monster monster = Monster.LIZARD;
 	private Phase phase = Phase.STOP;
 	private int score = 0;
 	private boolean monsterIntro;
@@ -120,15 +146,29 @@ public class Sampler {
 		samplePlayers.setForwardKillCommand(true);
 	}
 
-	public void start(File soundsDir, Settings settings, int[] devices) {
+	/**
+	 * @param headless
+	 *            if <code>true</code> no control window is created; the monster
+	 *            and phase come from the settings instead
+	 */
+	public void start(File soundsDir, Settings settings, String[] devices, boolean headless) {
 		smallDamagePoints = settings.getInteger(SMALL_DAMAGE_POINTS, smallDamagePoints);
 		mediumDamagePoints = settings.getInteger(MEDIUM_DAMAGE_POINTS, mediumDamagePoints);
 		largeDamagePoints = settings.getInteger(LARGE_DAMAGE_POINTS, largeDamagePoints);
 
 		mildChaosPoints = settings.getInteger(MILD_CHAOS_POINTS, mildChaosPoints);
 		heavyChaosPoints = settings.getInteger(HEAVY_CHAOS_POINTS, heavyChaosPoints);
+		monster = Monster.valueOf(settings.getString(MONSTER, monster.toString()));
 
 		deviceFlow = new FlowSize[devices.length];
+		Arrays.fill(deviceFlow, FlowSize.NONE);
+		deviceRegion = new int[devices.length];
+		Arrays.fill(deviceRegion, -1);
+		deviceCaptureNanos = new long[devices.length];
+		deviceLatency = new SoundLatency[devices.length];
+		for (int i = 0; i < devices.length; i++) {
+			deviceLatency[i] = new SoundLatency();
+		}
 
 		JavaSoundAudioIO aio = new JavaSoundAudioIO();
 		JavaSoundAudioIO.printMixerInfo();
@@ -138,10 +178,35 @@ public class Sampler {
 
 		ac = new AudioContext(aio);
 
+		// A sample rendered by the audio thread still has to get through one
+		// output buffer before it's heard
+		outputLatencyNanos = (long) (ac.samplesToMs(ac.getBufferSize()) * 1000000);
+
 		loadSamples(soundsDir, ac);
 
 		ac.start();
 
+		if (headless) {
+			// Go straight into the configured phase, introducing the monster
+			// so damage is scored. These are the first things the thread does
+			postPhase(Phase.valueOf(settings.getString(HEADLESS_PHASE, Phase.ACTION.toString())));
+			postMonsterIntro();
+		} else {
+			createControls(devices);
+		}
+
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runEvents();
+			}
+		}, "sampler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void createControls(String[] devices) {
 		controlFrame = new CanvasFrame("Sampler");
 		controlFrame.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
 
@@ -178,13 +243,13 @@ public class Sampler {
 					public void actionPerformed(ActionEvent e) {
 						switch (((JRadioButton) e.getSource()).getText()) {
 						case "Reconstruct":
-							setPhase(Phase.RECONSTRUCT);
+							postPhase(Phase.RECONSTRUCT);
 							break;
 						case "Action":
-							setPhase(Phase.ACTION);
+							postPhase(Phase.ACTION);
 							break;
 						case "Stop":
-							setPhase(Phase.STOP);
+							postPhase(Phase.STOP);
 							break;
 						}
 					}
@@ -193,23 +258,33 @@ public class Sampler {
 		Processor.createButton(controlPanel, "Monster Intro", new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				handleMonsterIntro();
+				postMonsterIntro();
 			}
 		});
 		Processor.createButton(controlPanel, "Large Damage", new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				if (phase == Phase.ACTION) {
-					play(Category.LARGE_DAMAGE, Volume.FULL, false, true);
-				}
+				post(new Runnable() {
+					@Override
+					public void run() {
+						if (phase == Phase.ACTION) {
+							play(Category.LARGE_DAMAGE, Volume.FULL, false, true);
+						}
+					}
+				});
 			}
 		});
 		Processor.createButton(controlPanel, "Scream", new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				if (phase == Phase.ACTION) {
-					play(Category.SCREAM, Volume.EFFECT_MEDIUM, false, true);
-				}
+				post(new Runnable() {
+					@Override
+					public void run() {
+						if (phase == Phase.ACTION) {
+							play(Category.SCREAM, Volume.EFFECT_MEDIUM, false, true);
+						}
+					}
+				});
 			}
 		});
 		Processor.createButton(controlPanel, "Circus", new ActionListener() {
@@ -219,7 +294,12 @@ public class Sampler {
 						"Circus Music?  Now?", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE, null, null,
 						null);
 				if (confirm == JOptionPane.YES_OPTION) {
-					play(Category.CIRCUS, Volume.EFFECT_LOW, false, true);
+					post(new Runnable() {
+						@Override
+						public void run() {
+							play(Category.CIRCUS, Volume.EFFECT_LOW, false, true);
+						}
+					});
 				}
 			}
 		});
@@ -279,60 +359,198 @@ public class Sampler {
 
 		settings.set(MILD_CHAOS_POINTS, mildChaosPoints);
 		settings.set(HEAVY_CHAOS_POINTS, heavyChaosPoints);
+		settings.set(MONSTER, monster);
+
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 
 		stopAllSounds();
 		ac.stop();
-		controlFrame.setVisible(false);
-		controlFrame.dispose();
+		if (controlFrame != null) {
+			controlFrame.setVisible(false);
+			controlFrame.dispose();
+		}
 	}
 
-	public void setDeviceActivity(int deviceIndex, FlowSize flowSize) {
-		deviceFlow[deviceIndex] = flowSize;
-		deviceStatusLabels[deviceIndex].setText(flowSize.toString().toLowerCase());
+	/**
+	 * @return capture-to-sound latencies for the device at the index
+	 */
+	public SoundLatency getSoundLatency(int deviceIndex) {
+		return deviceLatency[deviceIndex];
 	}
 
-	public void process() {
-		if (phase != Phase.ACTION) {
-			return;
+	/**
+	 * @param trigger
+	 *            <code>true</code> if the activity should be scored
+	 * @param captureNanos
+	 *            the {@link System#nanoTime()} when the frame showing this
+	 *            activity was captured
+	 */
+	private void setDeviceActivity(int deviceIndex, FlowSize flowSize, int region, boolean trigger,
+			long captureNanos) {
+		post(new FlowEvent(deviceIndex, flowSize, region, trigger, captureNanos));
+	}
+
+	/**
+	 * Runs the event on the sampler thread, in order with everything else
+	 * posted.
+	 */
+	private void post(Runnable event) {
+		events.add(event);
+		LockSupport.unpark(thread);
+	}
+
+	private void postPhase(final Phase newPhase) {
+		post(new Runnable() {
+			@Override
+			public void run() {
+				setPhase(newPhase);
+			}
+		});
+	}
+
+	private void postMonsterIntro() {
+		post(new Runnable() {
+			@Override
+			public void run() {
+				handleMonsterIntro();
+			}
+		});
+	}
+
+	@Override
+	public void flowChanged(int deviceIndex, FlowSize from, FlowSize to, int region, long captureNanos) {
+		// Activity easing off is only shown, not scored
+		setDeviceActivity(deviceIndex, to, region, to.ordinal() > from.ordinal(), captureNanos);
+	}
+
+	@Override
+	public void flowPeaked(int deviceIndex, FlowSize size, int region, long captureNanos) {
+		// The size hasn't changed, so this is scored like a fresh event
+		setDeviceActivity(deviceIndex, size, region, true, captureNanos);
+	}
+
+	/**
+	 * Handles events as soon as they arrive, and ticks every
+	 * {@link #TICK_NANOS} to score sustained activity and maintain the chaos.
+	 */
+	private void runEvents() {
+		long nextTick = System.nanoTime() + TICK_NANOS;
+		while (running) {
+			Runnable event;
+			while ((event = events.poll()) != null) {
+				event.run();
+			}
+
+			long now = System.nanoTime();
+			if (now - nextTick >= 0) {
+				tick();
+				nextTick = now + TICK_NANOS;
+			}
+
+			LockSupport.parkNanos(this, nextTick - now);
 		}
-		if (!monsterIntro) {
-			return;
+	}
+
+	private void handleEvent(FlowEvent event) {
+		int i = event.deviceIndex;
+		if ((deviceFlow[i] != event.flowSize || deviceRegion[i] != event.region) && deviceStatusLabels != null) {
+			String status = event.flowSize.toString().toLowerCase();
+			if (event.region >= 0) {
+				status += " in cell " + event.region;
+			}
+			setLabel(deviceStatusLabels[i], status);
 		}
+		deviceFlow[i] = event.flowSize;
+		deviceRegion[i] = event.region;
+		deviceCaptureNanos[i] = event.captureNanos;
+
+		// Sounds only play for what FlowTracker triggered on, so its
+		// cooldowns decide how often they can play: the first trigger of a
+		// tick plays the moment it arrives, later ones in the same tick only
+		// count towards the tick's points
+		if (event.trigger && event.flowSize.ordinal() > tickPeak.ordinal()) {
+			if (tickPeak == FlowSize.NONE) {
+				playDamage(event.flowSize, i);
+			}
+			tickPeak = event.flowSize;
+		}
+	}
 
-		// Monster has been introduced, start measuring activity (damage)
-		FlowSize maxFlow = FlowSize.NONE;
+	private void tick() {
+		// Points come every tick for the biggest activity going on, or
+		// triggered during the tick so bursts shorter than a tick count
+		FlowSize maxFlow = tickPeak;
 		for (int i = 0; i < deviceFlow.length; i++) {
 			if (deviceFlow[i].ordinal() > maxFlow.ordinal()) {
 				maxFlow = deviceFlow[i];
 			}
 		}
+		scoreDamage(maxFlow);
+		tickPeak = FlowSize.NONE;
+	}
+
+	private boolean isScoring() {
+		// Monster has been introduced, start measuring activity (damage)
+		return phase == Phase.ACTION && monsterIntro;
+	}
 
-		int points = 0;
-		switch (maxFlow) {
+	private void playDamage(FlowSize flow, int deviceIndex) {
+		if (!isScoring()) {
+			return;
+		}
+
+		switch (flow) {
 		case LARGE:
 			System.out.println("Large damage");
-			play(Category.LARGE_DAMAGE, Volume.EFFECT_HIGH);
-			points += largeDamagePoints;
+			play(Category.LARGE_DAMAGE, Volume.EFFECT_HIGH, deviceIndex);
 			break;
 		case MEDIUM:
 			System.out.println("Medium damage");
-			play(Category.MEDIUM_DAMAGE, Volume.EFFECT_MEDIUM);
+			play(Category.MEDIUM_DAMAGE, Volume.EFFECT_MEDIUM, deviceIndex);
 			play(Category.CRUMBLE, Volume.EFFECT_MEDIUM);
-			points += mediumDamagePoints;
 			break;
 		case SMALL:
 			System.out.println("Small damage");
-			play(Category.SMALL_DAMAGE, Volume.EFFECT_LOW);
+			play(Category.SMALL_DAMAGE, Volume.EFFECT_LOW, deviceIndex);
 			play(Category.CRUMBLE, Volume.EFFECT_LOW);
-			points += smallDamagePoints;
 			break;
 		default:
 			break;
 		}
+	}
+
+	private void scoreDamage(FlowSize flow) {
+		if (!isScoring()) {
+			return;
+		}
 
 		long oldScore = score;
-		setScore(score + points);
+		if (flow != FlowSize.NONE) {
+			setScore(score + damagePoints(flow));
+		}
+		maintainChaos(oldScore);
+	}
+
+	private int damagePoints(FlowSize flow) {
+		switch (flow) {
+		case LARGE:
+			return largeDamagePoints;
+		case MEDIUM:
+			return mediumDamagePoints;
+		case SMALL:
+			return smallDamagePoints;
+		default:
+			return 0;
+		}
+	}
 
+	private void maintainChaos(long oldScore) {
 		long second = System.currentTimeMillis() / 1000;
 		boolean startedNewChaosLevel = false;
 
@@ -340,7 +558,7 @@ public class Sampler {
 		if (score >= heavyChaosPoints) {
 			if (oldScore < heavyChaosPoints) {
 				startedNewChaosLevel = true;
-				chaosLabel.setText("heavy");
+				setChaosLevel("heavy");
 			}
 
 			if (startedNewChaosLevel || (second > lastChaosEffectSecond + 20)) {
@@ -352,7 +570,7 @@ public class Sampler {
 		} else if (score >= mildChaosPoints) {
 			if (oldScore < mildChaosPoints) {
 				startedNewChaosLevel = true;
-				chaosLabel.setText("mild");
+				setChaosLevel("mild");
 			}
 
 			// Trigger something every 15 seconds
@@ -367,14 +585,51 @@ public class Sampler {
 
 	private void setScore(int newScore) {
 		score = newScore;
-		scoreLabel.setText(Integer.toString(score));
+		if (scoreLabel != null) {
+			setLabel(scoreLabel, Integer.toString(score));
+		}
+	}
+
+	private void setChaosLevel(String level) {
+		System.out.println("Chaos level " + level);
+		if (chaosLabel != null) {
+			setLabel(chaosLabel, level);
+		}
+	}
+
+	/**
+	 * Sets the label's text on the event dispatch thread, since labels are
+	 * updated from the event thread.
+	 */
+	private static void setLabel(final JLabel label, final String text) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				label.setText(text);
+			}
+		});
 	}
 
 	private void play(Category category, Volume volume) {
-		play(category, volume, false, false);
+		play(category, volume, false, false, -1);
+	}
+
+	/**
+	 * Plays a sample triggered by activity on a device, tracing its latency.
+	 */
+	private void play(Category category, Volume volume, int deviceIndex) {
+		play(category, volume, false, false, deviceIndex);
 	}
 
 	private void play(Category category, Volume volume, boolean loop, boolean force) {
+		play(category, volume, loop, force, -1);
+	}
+
+	/**
+	 * @param deviceIndex
+	 *            the device whose activity triggered the sample, or -1
+	 */
+	private void play(Category category, Volume volume, boolean loop, boolean force, int deviceIndex) {
 		List<Sample> availableSamples = new ArrayList<Sample>(samples.get(category));
 		Sample sample = null;
 
@@ -392,7 +647,15 @@ public class Sampler {
 			return;
 		}
 
-		final SamplePlayer player = new SamplePlayer(ac, sample);
+		final SamplePlayer player;
+		if (deviceIndex >= 0) {
+			long captureNanos = deviceCaptureNanos[deviceIndex];
+			SoundLatency latency = deviceLatency[deviceIndex];
+			latency.recordTrigger(System.nanoTime() - captureNanos);
+			player = new TracedSamplePlayer(ac, sample, latency, captureNanos - outputLatencyNanos);
+		} else {
+			player = new SamplePlayer(ac, sample);
+		}
 		player.pause(true);
 
 		// TODO delay
@@ -503,7 +766,7 @@ public class Sampler {
 		setScore(0);
 		phase = newPhase;
 		monsterIntro = false;
-		chaosLabel.setText("peaceful");
+		setChaosLevel("peaceful");
 
 		switch (phase) {
 		case RECONSTRUCT:
@@ -554,4 +817,58 @@ public class Sampler {
 			throw new RuntimeException(e);
 		}
 	}
+
+	/**
+	 * Activity reported by a camera's {@link com.tinfig.rr.processors.FlowTracker}.
+	 */
+	private class FlowEvent implements Runnable {
+		final int deviceIndex;
+		final FlowSize flowSize;
+		final int region;
+		// Grew or peaked, rather than eased off
+		final boolean trigger;
+		final long captureNanos;
+
+		FlowEvent(int deviceIndex, FlowSize flowSize, int region, boolean trigger, long captureNanos) {
+			this.deviceIndex = deviceIndex;
+			this.flowSize = flowSize;
+			this.region = region;
+			this.trigger = trigger;
+			this.captureNanos = captureNanos;
+		}
+
+		@Override
+		public void run() {
+			handleEvent(this);
+		}
+	}
+
+	/**
+	 * Records when the audio thread first renders the sample.
+	 */
+	private static class TracedSamplePlayer extends SamplePlayer {
+		private final SoundLatency latency;
+		private final long startNanos;
+		private boolean traced;
+
+		/**
+		 * @param startNanos
+		 *            the time to measure from, already adjusted for output
+		 *            latency
+		 */
+		public TracedSamplePlayer(AudioContext ac, Sample sample, SoundLatency latency, long startNanos) {
+			super(ac, sample);
+			this.latency = latency;
+			this.startNanos = startNanos;
+		}
+
+		@Override
+		public void calculateBuffer() {
+			if (!traced) {
+				traced = true;
+				latency.recordAudible(System.nanoTime() - startNanos);
+			}
+			super.calculateBuffer();
+		}
+	}
 }
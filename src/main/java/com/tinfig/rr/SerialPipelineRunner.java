@@ -0,0 +1,61 @@
+package com.tinfig.rr;
+
+/**
+ * Runs the whole processor chain for one frame before starting the next, on a
+ * single thread.
+ */
+public class SerialPipelineRunner extends PipelineRunner {
+	private Thread thread;
+
+	public SerialPipelineRunner(Main main, Frame frame, Processor[] processors, double targetFrameRate) {
+		super(main, frame, processors, targetFrameRate);
+	}
+
+	@Override
+	public void start() {
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runFrames();
+			}
+		}, "pipeline-" + getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void stop() throws InterruptedException {
+		thread.interrupt();
+		thread.join();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		// Only ever one frame in flight
+		return 0;
+	}
+
+	@Override
+	public Frame[] getFrames() {
+		return new Frame[] { frame };
+	}
+
+	private void runFrames() {
+		try {
+			while (isProcessing()) {
+				waitForNextFrame();
+
+				frameStarted(frame);
+				for (int i = 0; i < processors.length; i++) {
+					if (!isProcessing()) {
+						return;
+					}
+					runProcessor(i, frame);
+				}
+				frameCompleted(frame);
+			}
+		} catch (InterruptedException e) {
+			// Stopping
+		}
+	}
+}
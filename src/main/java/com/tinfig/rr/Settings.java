@@ -57,6 +57,14 @@ public class Settings {
 		return Boolean.parseBoolean(value);
 	}
 
+	public String getString(String key, String defaultValue) {
+		String value = values.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		return value;
+	}
+
 	public int getInteger(String key, int defaultValue) {
 		String value = values.get(key);
 		if (value == null) {
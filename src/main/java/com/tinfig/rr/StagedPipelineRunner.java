@@ -0,0 +1,197 @@
+package com.tinfig.rr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs each processor as its own pipeline stage on its own thread, so
+ * consecutive frames overlap: frame N+1 can be in {@code MotionDetector} while
+ * frame N is in {@code FlowDetector}.
+ * <p>
+ * A small pool of {@link Frame}s cycles through the stages in order. Each
+ * processor still sees every frame in sequence on a single thread, so state
+ * it keeps between frames stays consistent. Processors must keep per-frame
+ * outputs that later stages read in the {@link Frame} (not in their own
+ * fields); debug images owned by a processor may show a newer frame than the
+ * one being displayed.
+ * <p>
+ * When the input ends, the later stages finish the frames already queued for
+ * them before stopping.
+ */
+public class StagedPipelineRunner extends PipelineRunner {
+	private final Frame[] pool;
+	private final BlockingQueue<Frame> free;
+	private final List<BlockingQueue<Frame>> queues;
+	private final Thread[] threads;
+	// Follows the last frame through the later stages, which stop when it
+	// reaches them
+	private final Frame endMarker = new Frame();
+
+	public StagedPipelineRunner(Main main, Frame frame, Processor[] processors, double targetFrameRate) {
+		super(main, frame, processors, targetFrameRate);
+
+		// One frame in each stage plus one spare, so a slow stage can only
+		// hold back a single waiting frame and latency stays bounded
+		pool = new Frame[processors.length + 1];
+		pool[0] = frame;
+		for (int i = 1; i < pool.length; i++) {
+			pool[i] = new Frame();
+			pool[i].setName(frame.getName());
+			pool[i].setImagePool(frame.getImagePool());
+
+			// Keep anything processors published when they started
+			pool[i].getArtifacts().putAll(frame.getArtifacts());
+		}
+
+		free = new ArrayBlockingQueue<>(pool.length);
+		for (Frame f : pool) {
+			free.add(f);
+		}
+
+		// queues[i] feeds stage i; stage 0 takes from the free pool
+		queues = new ArrayList<>(processors.length);
+		queues.add(free);
+		for (int i = 1; i < processors.length; i++) {
+			queues.add(new ArrayBlockingQueue<Frame>(pool.length));
+		}
+
+		threads = new Thread[processors.length];
+	}
+
+	@Override
+	public void start() {
+		for (int i = 0; i < threads.length; i++) {
+			final int stage = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runStage(stage);
+				}
+			}, "pipeline-" + getName() + "-" + processors[i].getClass().getSimpleName());
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Stops the first stage. The others finish the frames already queued for
+	 * them, so this waits for up to a pipeline's worth of frames.
+	 */
+	@Override
+	public void stop() throws InterruptedException {
+		threads[0].interrupt();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	@Override
+	public Frame[] getFrames() {
+		return pool.clone();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		int depth = 0;
+		for (int i = 1; i < queues.size(); i++) {
+			depth += queues.get(i).size();
+		}
+		return depth;
+	}
+
+	private void runStage(int stage) {
+		if (stage == 0) {
+			runFirstStage();
+		} else {
+			runLaterStage(stage);
+		}
+	}
+
+	/**
+	 * Reads frames until the input ends or the pipeline stops, then sends
+	 * {@link #endMarker} after the frames already passed on.
+	 */
+	private void runFirstStage() {
+		BlockingQueue<Frame> out = queues.size() > 1 ? queues.get(1) : free;
+
+		try {
+			while (isProcessing()) {
+				waitForNextFrame();
+
+				Frame f = free.take();
+				frameStarted(f);
+				runProcessor(0, f);
+
+				if (!isProcessing()) {
+					// The input ran out on this frame, so there's nothing in it
+					// for the later stages
+					free.put(f);
+					break;
+				}
+
+				if (out == free) {
+					frameCompleted(f);
+				}
+				out.put(f);
+			}
+		} catch (InterruptedException e) {
+			// Stopping
+		} finally {
+			if (out != free) {
+				sendEndMarker(out);
+			}
+		}
+	}
+
+	/**
+	 * Processes frames until {@link #endMarker} arrives, so frames read
+	 * before the input ended are finished. Frames are passed through without
+	 * processing if the pipeline is stopped some other way.
+	 */
+	private void runLaterStage(int stage) {
+		BlockingQueue<Frame> in = queues.get(stage);
+		BlockingQueue<Frame> out = stage + 1 < queues.size() ? queues.get(stage + 1) : free;
+
+		try {
+			while (true) {
+				Frame f = in.take();
+				if (f == endMarker) {
+					if (out != free) {
+						out.put(f);
+					}
+					return;
+				}
+
+				if (main.isProcessing() || isInputEnded()) {
+					runProcessor(stage, f);
+				}
+
+				if (out == free) {
+					frameCompleted(f);
+				}
+				out.put(f);
+			}
+		} catch (InterruptedException e) {
+			// Only the first stage is interrupted to stop, so this is unexpected
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * There's always room for the marker: every frame but the one the first
+	 * stage may still hold fits in a queue, and the later stages keep taking
+	 * until they see it.
+	 */
+	private void sendEndMarker(BlockingQueue<Frame> out) {
+		while (true) {
+			try {
+				out.put(endMarker);
+				return;
+			} catch (InterruptedException e) {
+				// Stopping anyway; the later stages won't stop without it
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.tinfig.rr;
+
+import java.util.Arrays;
+
+/**
+ * Estimates a quantile of every sample added so far, in constant time and
+ * space, without keeping the samples.
+ * <p>
+ * Uses the P² algorithm (Jain and Chlamtac, 1985): five markers track the
+ * minimum, the quantile, the quantiles halfway either side of it, and the
+ * maximum, and are nudged along a parabola fitted through their neighbours as
+ * samples arrive. Until five samples have arrived the quantile is exact. Not
+ * thread-safe.
+ */
+public class StreamingQuantile {
+	private static final int MARKERS = 5;
+
+	private final double quantile;
+
+	// Height (sample value) and actual position of each marker, and where
+	// each marker would ideally be and how far that moves per sample
+	private final double[] heights = new double[MARKERS];
+	private final double[] positions = new double[MARKERS];
+	private final double[] desired = new double[MARKERS];
+	private final double[] increments;
+
+	private final double[] sorted = new double[MARKERS];
+	private long count;
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1, for example 0.99 for the 99th percentile
+	 */
+	public StreamingQuantile(double quantile) {
+		Check.isTrue(quantile > 0 && quantile < 1, "Quantile must be between 0 and 1");
+		this.quantile = quantile;
+		increments = new double[] { 0, quantile / 2, quantile, (1 + quantile) / 2, 1 };
+		reset();
+	}
+
+	public void add(double sample) {
+		if (count < MARKERS) {
+			heights[(int) count++] = sample;
+			if (count == MARKERS) {
+				Arrays.sort(heights);
+			}
+			return;
+		}
+		count++;
+
+		// Find the cell the sample falls in, stretching the ends to fit it
+		int k;
+		if (sample < heights[0]) {
+			heights[0] = sample;
+			k = 0;
+		} else if (sample >= heights[MARKERS - 1]) {
+			heights[MARKERS - 1] = sample;
+			k = MARKERS - 2;
+		} else {
+			k = 0;
+			while (sample >= heights[k + 1]) {
+				k++;
+			}
+		}
+
+		for (int i = k + 1; i < MARKERS; i++) {
+			positions[i]++;
+		}
+		for (int i = 0; i < MARKERS; i++) {
+			desired[i] += increments[i];
+		}
+
+		// Move the middle markers that have fallen a whole position or more
+		// behind or ahead of where they should be
+		for (int i = 1; i < MARKERS - 1; i++) {
+			double d = desired[i] - positions[i];
+			if ((d >= 1 && positions[i + 1] - positions[i] > 1) || (d <= -1 && positions[i - 1] - positions[i] < -1)) {
+				int s = d > 0 ? 1 : -1;
+				double height = parabolic(i, s);
+				if (heights[i - 1] < height && height < heights[i + 1]) {
+					heights[i] = height;
+				} else {
+					heights[i] = linear(i, s);
+				}
+				positions[i] += s;
+			}
+		}
+	}
+
+	/**
+	 * @return the estimated quantile, or 0 if nothing was added
+	 */
+	public double get() {
+		if (count == 0) {
+			return 0;
+		}
+		if (count < MARKERS) {
+			int n = (int) count;
+			System.arraycopy(heights, 0, sorted, 0, n);
+			Arrays.sort(sorted, 0, n);
+			return sorted[(int) Math.round(quantile * (n - 1))];
+		}
+		return heights[2];
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getQuantile() {
+		return quantile;
+	}
+
+	/**
+	 * Forgets every sample.
+	 */
+	public void reset() {
+		count = 0;
+		for (int i = 0; i < MARKERS; i++) {
+			heights[i] = 0;
+			positions[i] = i + 1;
+		}
+		desired[0] = 1;
+		desired[1] = 1 + 2 * quantile;
+		desired[2] = 1 + 4 * quantile;
+		desired[3] = 3 + 2 * quantile;
+		desired[4] = 5;
+	}
+
+	private double parabolic(int i, int s) {
+		return heights[i]
+				+ s
+				/ (positions[i + 1] - positions[i - 1])
+				* ((positions[i] - positions[i - 1] + s) * (heights[i + 1] - heights[i])
+						/ (positions[i + 1] - positions[i]) + (positions[i + 1] - positions[i] - s)
+						* (heights[i] - heights[i - 1]) / (positions[i] - positions[i - 1]));
+	}
+
+	private double linear(int i, int s) {
+		return heights[i] + s * (heights[i + s] - heights[i]) / (positions[i + s] - positions[i]);
+	}
+}
@@ -2,7 +2,14 @@ package com.tinfig.rr;
 
 /**
  * Tracks the last n samples and reports on their statistical properties.
- * 
+ * <p>
+ * The window starts out full of zeros. Every query takes constant time
+ * however big the window is: the sum and the sum of squares are kept as
+ * samples come and go (and recomputed from the window each time it wraps, so
+ * rounding can't build up), and the minimum and maximum come from monotonic
+ * deques of the samples that could still become the extreme. Not
+ * thread-safe.
+ *
  * @author sterwill
  */
 public class WindowedDoubleStats {
@@ -11,50 +18,91 @@ public class WindowedDoubleStats {
 	private int windowIndex = 0;
 	private long totalSamples;
 
+	private double sum;
+	private double sumOfSquares;
+
+	// Slots of the samples that could still become the minimum or maximum,
+	// oldest first. Values rise from the front of minSlots and fall from the
+	// front of maxSlots, so the front is always the extreme.
+	private final int[] minSlots;
+	private int minHead;
+	private int minCount;
+	private final int[] maxSlots;
+	private int maxHead;
+	private int maxCount;
+
 	public WindowedDoubleStats(int windowSize) {
+		Check.isTrue(windowSize > 0, "Window size must be positive");
 		this.samples = new double[windowSize];
 		this.windowSize = windowSize;
+
+		minSlots = new int[windowSize];
+		maxSlots = new int[windowSize];
+		// The newest of the initial zeros stands for all of them
+		minSlots[0] = windowSize - 1;
+		minCount = 1;
+		maxSlots[0] = windowSize - 1;
+		maxCount = 1;
 	}
 
 	public void add(double sample) {
+		int slot = windowIndex;
+		double removed = samples[slot];
+		// The oldest sample is leaving, and if it's still a candidate it's at
+		// the front
+		if (minCount > 0 && minSlots[minHead] == slot) {
+			minHead = next(minHead);
+			minCount--;
+		}
+		if (maxCount > 0 && maxSlots[maxHead] == slot) {
+			maxHead = next(maxHead);
+			maxCount--;
+		}
 		samples[windowIndex++] = sample;
 		totalSamples++;
 
+		sum += sample - removed;
+		sumOfSquares += sample * sample - removed * removed;
+
 		if (windowIndex > windowSize - 1) {
 			windowIndex = 0;
+			recompute();
 		}
+
+		pushMin(slot, sample);
+		pushMax(slot, sample);
 	}
 
 	public long getTotalSamples() {
 		return totalSamples;
 	}
 
+	public double sum() {
+		return sum;
+	}
+
 	public double average() {
-		double average = 0;
-		for (double l : samples) {
-			average += l;
-		}
-		return average / windowSize;
+		return sum / windowSize;
+	}
+
+	/**
+	 * @return the population variance of the window
+	 */
+	public double variance() {
+		double mean = sum / windowSize;
+		return Math.max(0, sumOfSquares / windowSize - mean * mean);
+	}
+
+	public double standardDeviation() {
+		return Math.sqrt(variance());
 	}
 
 	public double max() {
-		double max = Long.MIN_VALUE;
-		for (double l : samples) {
-			if (l > max) {
-				max = l;
-			}
-		}
-		return max;
+		return samples[maxSlots[maxHead]];
 	}
 
 	public double min() {
-		double min = Long.MAX_VALUE;
-		for (double l : samples) {
-			if (l < min) {
-				min = l;
-			}
-		}
-		return min;
+		return samples[minSlots[minHead]];
 	}
 
 	public double first() {
@@ -77,4 +125,45 @@ public class WindowedDoubleStats {
 		}
 		return array;
 	}
+
+	private void recompute() {
+		double total = 0;
+		double squares = 0;
+		for (double l : samples) {
+			total += l;
+			squares += l * l;
+		}
+		sum = total;
+		sumOfSquares = squares;
+	}
+
+	private void pushMin(int slot, double sample) {
+		// Anything at least as big as the new sample leaves the window first,
+		// so can never be the minimum again
+		while (minCount > 0 && samples[minSlots[back(minHead, minCount)]] >= sample) {
+			minCount--;
+		}
+		minSlots[back(minHead, minCount + 1)] = slot;
+		minCount++;
+	}
+
+	private void pushMax(int slot, double sample) {
+		while (maxCount > 0 && samples[maxSlots[back(maxHead, maxCount)]] <= sample) {
+			maxCount--;
+		}
+		maxSlots[back(maxHead, maxCount + 1)] = slot;
+		maxCount++;
+	}
+
+	private int next(int i) {
+		return i == windowSize - 1 ? 0 : i + 1;
+	}
+
+	/**
+	 * @return the index of the last of count entries starting at head
+	 */
+	private int back(int head, int count) {
+		int i = head + count - 1;
+		return i >= windowSize ? i - windowSize : i;
+	}
 }
@@ -2,7 +2,14 @@ package com.tinfig.rr;
 
 /**
  * Tracks the last n samples and reports on their statistical properties.
- * 
+ * <p>
+ * The window starts out full of zeros. Every query takes constant time
+ * however big the window is: the sum is kept as samples come and go, the sum
+ * of squares likewise (recomputed from the window each time it wraps, so
+ * rounding can't build up), and the minimum and maximum come from monotonic
+ * deques of the samples that could still become the extreme. Not
+ * thread-safe.
+ *
  * @author sterwill
  */
 public class WindowedStats {
@@ -11,18 +18,59 @@ public class WindowedStats {
 	private int windowIndex = 0;
 	private long totalSamples;
 
+	private long sum;
+	private double sumOfSquares;
+
+	// Slots of the samples that could still become the minimum or maximum,
+	// oldest first. Values rise from the front of minSlots and fall from the
+	// front of maxSlots, so the front is always the extreme.
+	private final int[] minSlots;
+	private int minHead;
+	private int minCount;
+	private final int[] maxSlots;
+	private int maxHead;
+	private int maxCount;
+
 	public WindowedStats(int windowSize) {
+		Check.isTrue(windowSize > 0, "Window size must be positive");
 		this.samples = new long[windowSize];
 		this.windowSize = windowSize;
+
+		minSlots = new int[windowSize];
+		maxSlots = new int[windowSize];
+		// The newest of the initial zeros stands for all of them
+		minSlots[0] = windowSize - 1;
+		minCount = 1;
+		maxSlots[0] = windowSize - 1;
+		maxCount = 1;
 	}
 
 	public void add(long sample) {
+		int slot = windowIndex;
+		long removed = samples[slot];
+		// The oldest sample is leaving, and if it's still a candidate it's at
+		// the front
+		if (minCount > 0 && minSlots[minHead] == slot) {
+			minHead = next(minHead);
+			minCount--;
+		}
+		if (maxCount > 0 && maxSlots[maxHead] == slot) {
+			maxHead = next(maxHead);
+			maxCount--;
+		}
 		samples[windowIndex++] = sample;
 		totalSamples++;
 
+		sum += sample - removed;
+		sumOfSquares += (double) sample * sample - (double) removed * removed;
+
 		if (windowIndex > windowSize - 1) {
 			windowIndex = 0;
+			recompute();
 		}
+
+		pushMin(slot, sample);
+		pushMax(slot, sample);
 	}
 
 	public long getTotalSamples() {
@@ -30,39 +78,31 @@ public class WindowedStats {
 	}
 
 	public long sum() {
-		long sum = 0;
-		for (long l : samples) {
-			sum += l;
-		}
 		return sum;
 	}
 
 	public long average() {
-		long average = 0;
-		for (long l : samples) {
-			average += l;
-		}
-		return average / windowSize;
+		return sum / windowSize;
+	}
+
+	/**
+	 * @return the population variance of the window
+	 */
+	public double variance() {
+		double mean = (double) sum / windowSize;
+		return Math.max(0, sumOfSquares / windowSize - mean * mean);
+	}
+
+	public double standardDeviation() {
+		return Math.sqrt(variance());
 	}
 
 	public long max() {
-		long max = Long.MIN_VALUE;
-		for (long l : samples) {
-			if (l > max) {
-				max = l;
-			}
-		}
-		return max;
+		return samples[maxSlots[maxHead]];
 	}
 
 	public long min() {
-		long min = Long.MAX_VALUE;
-		for (long l : samples) {
-			if (l < min) {
-				min = l;
-			}
-		}
-		return min;
+		return samples[minSlots[minHead]];
 	}
 
 	public long first() {
@@ -72,4 +112,42 @@ public class WindowedStats {
 	public long last() {
 		return samples[windowIndex];
 	}
+
+	private void recompute() {
+		double squares = 0;
+		for (long l : samples) {
+			squares += (double) l * l;
+		}
+		sumOfSquares = squares;
+	}
+
+	private void pushMin(int slot, long sample) {
+		// Anything at least as big as the new sample leaves the window first,
+		// so can never be the minimum again
+		while (minCount > 0 && samples[minSlots[back(minHead, minCount)]] >= sample) {
+			minCount--;
+		}
+		minSlots[back(minHead, minCount + 1)] = slot;
+		minCount++;
+	}
+
+	private void pushMax(int slot, long sample) {
+		while (maxCount > 0 && samples[maxSlots[back(maxHead, maxCount)]] <= sample) {
+			maxCount--;
+		}
+		maxSlots[back(maxHead, maxCount + 1)] = slot;
+		maxCount++;
+	}
+
+	private int next(int i) {
+		return i == windowSize - 1 ? 0 : i + 1;
+	}
+
+	/**
+	 * @return the index of the last of count entries starting at head
+	 */
+	private int back(int head, int count) {
+		int i = head + count - 1;
+		return i >= windowSize ? i - windowSize : i;
+	}
 }
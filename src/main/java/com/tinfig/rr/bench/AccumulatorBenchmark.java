@@ -0,0 +1,163 @@
+package com.tinfig.rr.bench;
+
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.tinfig.rr.Frame;
+import com.tinfig.rr.ImagePool;
+import com.tinfig.rr.Settings;
+import com.tinfig.rr.metrics.LatencyHistogram;
+import com.tinfig.rr.processors.AccumulatorType;
+import com.tinfig.rr.processors.FeatureAccumulator;
+import com.tinfig.rr.processors.FixedPointAccumulator;
+import com.tinfig.rr.processors.FloatAccumulator;
+import com.tinfig.rr.processors.MotionDetector;
+import com.tinfig.rr.sources.ReplayFrameSource;
+
+/**
+ * Feeds the building features {@link MotionDetector} finds in recorded frames
+ * to each {@link AccumulatorType}, and reports how long the accumulators took
+ * and how far apart their averages are: over the whole run, and on the last
+ * frame, so drift that builds up shows.
+ * <p>
+ * Also reports the image memory each type reads and writes per frame, counted
+ * from what each pass touches per pixel: {@link FloatAccumulator}'s
+ * <code>cvRunningAvg</code> reads the features (1 byte) and reads and writes
+ * the 32-bit average (8), then <code>cvConvert</code> reads it again (4) and
+ * writes the result (1); {@link FixedPointAccumulator} reads the features and
+ * writes the result (2) and reads and writes its 16-bit average (4).
+ */
+public class AccumulatorBenchmark {
+	private static final AccumulatorType[] TYPES = AccumulatorType.values();
+
+	private static int bytesPerPixel(AccumulatorType type) {
+		return type == AccumulatorType.FIXED ? 6 : 14;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("s", "settings", true, "Camera settings file to start from (default built-in settings)");
+		options.addOption("a", "alpha", true, "Accumulator alpha (default 0.3)");
+		options.addOption("w", "warmup", true, "Frames to run before timing (default 30)");
+		options.addOption("r", "sequence-rate", true, "Frame rate images in a directory were recorded at (default 30)");
+		options.addOption("h", "help", false, "Shows help");
+
+		CommandLine line = new PosixParser().parse(options, args);
+		if (line.hasOption("help") || line.getArgs().length == 0) {
+			new HelpFormatter().printHelp(AccumulatorBenchmark.class.getSimpleName() + " [options] video-or-dir...",
+					options);
+			return;
+		}
+
+		double alpha = Double.parseDouble(line.getOptionValue("alpha", "0.3"));
+		int warmup = Integer.parseInt(line.getOptionValue("warmup", "30"));
+		double sequenceFrameRate = Double.parseDouble(line.getOptionValue("sequence-rate", "30"));
+
+		ImagePool pool = new ImagePool();
+		Object owner = AccumulatorBenchmark.class;
+
+		// The detector's own accumulator is turned off (alpha 1) so it hands
+		// over each frame's raw features
+		Settings settings = Benchmarks.loadSettings(line.getOptionValue("settings"));
+		settings.set("rectangle.accumulatorAlpha", 1.0);
+		Frame frame = new Frame();
+		frame.setName("Accumulator");
+		frame.setImagePool(pool);
+		MotionDetector detector = new MotionDetector();
+		detector.start(frame, settings);
+
+		FeatureAccumulator[] accumulators = new FeatureAccumulator[TYPES.length];
+		IplImage[] averages = new IplImage[TYPES.length];
+		LatencyHistogram[] latency = new LatencyHistogram[TYPES.length];
+		for (int i = 0; i < TYPES.length; i++) {
+			accumulators[i] = TYPES[i] == AccumulatorType.FIXED ? new FixedPointAccumulator() : new FloatAccumulator(
+					pool, owner);
+			latency[i] = new LatencyHistogram();
+		}
+
+		IplImage difference = null;
+		double maxDifference = 0;
+		double differenceSum = 0;
+		long differentPixels = 0;
+		long pixels = 0;
+		long frameCount = 0;
+		double lastMeanDifference = 0;
+
+		List<ReplayFrameSource> sources = Benchmarks.openSources(line.getArgs(), sequenceFrameRate);
+		for (ReplayFrameSource source : sources) {
+			source.start();
+			IplImage grabbed;
+			while ((grabbed = source.grab()) != null) {
+				if (frame.getVideoImage() == null) {
+					frame.setVideoImage(pool.borrow(frame, grabbed.cvSize(), grabbed.depth(), grabbed.nChannels()));
+				}
+				opencv_core.cvCopy(grabbed, frame.getVideoImage());
+				detector.process(frame);
+
+				IplImage features = frame.get(MotionDetector.BUILDING_FEATURES);
+				if (difference == null) {
+					difference = pool.borrow(owner, features.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+					for (int i = 0; i < TYPES.length; i++) {
+						averages[i] = pool.borrow(owner, features.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+					}
+				}
+
+				for (int i = 0; i < TYPES.length; i++) {
+					opencv_core.cvCopy(features, averages[i]);
+
+					long start = System.nanoTime();
+					accumulators[i].accumulate(averages[i], alpha);
+					long elapsed = System.nanoTime() - start;
+
+					if (frameCount >= warmup) {
+						latency[i].record(elapsed);
+					}
+				}
+
+				if (frameCount >= warmup) {
+					opencv_core.cvAbsDiff(averages[0], averages[1], difference);
+					double[] min = new double[1];
+					double[] max = new double[1];
+					opencv_core.cvMinMaxLoc(difference, min, max);
+					maxDifference = Math.max(maxDifference, max[0]);
+					double frameDifference = opencv_core.cvSum(difference).val(0);
+					differenceSum += frameDifference;
+					lastMeanDifference = frameDifference / (difference.width() * difference.height());
+					opencv_core.cvCmpS(difference, 1, difference, opencv_core.CV_CMP_GT);
+					differentPixels += opencv_core.cvCountNonZero(difference);
+					pixels += difference.width() * difference.height();
+				}
+				frameCount++;
+			}
+			source.stop();
+		}
+
+		for (int i = 0; i < TYPES.length; i++) {
+			System.out.println(Benchmarks.describe(TYPES[i].toString(), latency[i]));
+			if (difference != null) {
+				long imagePixels = difference.width() * difference.height();
+				System.out.println(String.format("  %d bytes/pixel, %.2f MB/frame", bytesPerPixel(TYPES[i]),
+						bytesPerPixel(TYPES[i]) * imagePixels / 1e6));
+			}
+		}
+		System.out.println(String.format(
+				"Difference: max %.0f gray levels, mean %.4f gray levels, %.4f%% of pixels more than 1 apart, "
+						+ "mean %.4f gray levels on the last frame", maxDifference, pixels == 0 ? 0 : differenceSum
+						/ pixels, pixels == 0 ? 0 : 100.0 * differentPixels / pixels, lastMeanDifference));
+
+		for (int i = 0; i < TYPES.length; i++) {
+			accumulators[i].release();
+		}
+		detector.stop(settings);
+		pool.releaseAll(frame);
+		pool.releaseAll(owner);
+		pool.reportLeaks();
+		pool.clear();
+	}
+}
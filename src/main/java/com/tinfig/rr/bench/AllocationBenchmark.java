@@ -0,0 +1,102 @@
+package com.tinfig.rr.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.sun.management.ThreadMXBean;
+import com.tinfig.rr.Frame;
+import com.tinfig.rr.ImagePool;
+import com.tinfig.rr.Settings;
+import com.tinfig.rr.processors.MotionDetector;
+import com.tinfig.rr.sources.ReplayFrameSource;
+
+/**
+ * Measures how much Java heap {@link MotionDetector} allocates per frame on
+ * recorded frames, along with how many rectangles it found, to
+ * check its loops stay allocation-free as the scene gets busier.
+ * <p>
+ * Only allocation on the calling thread is counted, so run with
+ * <code>rectangle.parallel</code> off to see everything.
+ */
+public class AllocationBenchmark {
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("s", "settings", true, "Camera settings file to start from (default built-in settings)");
+		options.addOption("w", "warmup", true, "Frames to run before measuring (default 30)");
+		options.addOption("r", "sequence-rate", true, "Frame rate images in a directory were recorded at (default 30)");
+		options.addOption("h", "help", false, "Shows help");
+
+		CommandLine line = new PosixParser().parse(options, args);
+		if (line.hasOption("help") || line.getArgs().length == 0) {
+			new HelpFormatter().printHelp(AllocationBenchmark.class.getSimpleName() + " [options] video-or-dir...",
+					options);
+			return;
+		}
+
+		int warmup = Integer.parseInt(line.getOptionValue("warmup", "30"));
+		double sequenceFrameRate = Double.parseDouble(line.getOptionValue("sequence-rate", "30"));
+
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.err.println("This JVM can't measure allocation per thread");
+			return;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long thread = Thread.currentThread().getId();
+
+		ImagePool pool = new ImagePool();
+		Settings settings = Benchmarks.loadSettings(line.getOptionValue("settings"));
+		Frame frame = new Frame();
+		frame.setName("Allocation");
+		frame.setImagePool(pool);
+		MotionDetector detector = new MotionDetector();
+		detector.start(frame, settings);
+
+		long frames = 0;
+		long measured = 0;
+		long totalBytes = 0;
+		long maxBytes = 0;
+		long rectangles = 0;
+
+		List<ReplayFrameSource> sources = Benchmarks.openSources(line.getArgs(), sequenceFrameRate);
+		for (ReplayFrameSource source : sources) {
+			source.start();
+			IplImage grabbed;
+			while ((grabbed = source.grab()) != null) {
+				if (frame.getVideoImage() == null) {
+					frame.setVideoImage(pool.borrow(frame, grabbed.cvSize(), grabbed.depth(), grabbed.nChannels()));
+				}
+				opencv_core.cvCopy(grabbed, frame.getVideoImage());
+
+				long before = threads.getThreadAllocatedBytes(thread);
+				detector.process(frame);
+				long bytes = threads.getThreadAllocatedBytes(thread) - before;
+
+				if (frames >= warmup) {
+					measured++;
+					totalBytes += bytes;
+					maxBytes = Math.max(maxBytes, bytes);
+					rectangles += frame.getInt(MotionDetector.RECTANGLE_COUNT);
+				}
+				frames++;
+			}
+			source.stop();
+		}
+
+		System.out.println(String.format("%d frames, mean %.0f bytes/frame, max %d bytes/frame, %.1f rectangles/frame",
+				measured, measured == 0 ? 0 : (double) totalBytes / measured, maxBytes, measured == 0 ? 0
+						: (double) rectangles / measured));
+
+		detector.stop(settings);
+		pool.releaseAll(frame);
+		pool.reportLeaks();
+		pool.clear();
+	}
+}
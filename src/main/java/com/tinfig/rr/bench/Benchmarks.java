@@ -0,0 +1,81 @@
+package com.tinfig.rr.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.tinfig.rr.Settings;
+import com.tinfig.rr.metrics.LatencyHistogram;
+import com.tinfig.rr.sources.ImageSequenceFrameSource;
+import com.tinfig.rr.sources.Pacing;
+import com.tinfig.rr.sources.ReplayFrameSource;
+import com.tinfig.rr.sources.VideoFileFrameSource;
+
+/**
+ * Helpers shared by the benchmarks, which replay recorded footage through
+ * alternative implementations and compare their speed and output.
+ */
+public class Benchmarks {
+	private Benchmarks() {
+	}
+
+	/**
+	 * Opens video files or directories of images for replay as fast as they
+	 * can be read.
+	 */
+	public static List<ReplayFrameSource> openSources(String[] paths, double sequenceFrameRate) {
+		List<ReplayFrameSource> sources = new ArrayList<>();
+		for (String path : paths) {
+			File file = new File(path);
+			ReplayFrameSource source;
+			if (file.isDirectory()) {
+				source = new ImageSequenceFrameSource(file, sequenceFrameRate);
+			} else {
+				source = new VideoFileFrameSource(file);
+			}
+			source.setPacing(Pacing.NATIVE, 0);
+			sources.add(source);
+		}
+		return sources;
+	}
+
+	/**
+	 * Loads tuned settings to start from, or empty settings if there's no
+	 * file. Benchmarks never save them.
+	 */
+	public static Settings loadSettings(String path) {
+		if (path == null) {
+			return new Settings(null);
+		}
+		return Settings.load(new File(path));
+	}
+
+	/**
+	 * Counts the pixels set in both images and in either image, for the
+	 * Jaccard index of two 8-bit masks.
+	 *
+	 * @param scratch
+	 *            an 8-bit image the same size as the masks
+	 * @param counts
+	 *            receives the intersection and union sizes, added to what's
+	 *            there
+	 */
+	public static void addOverlap(IplImage a, IplImage b, IplImage scratch, long[] counts) {
+		opencv_core.cvAnd(a, b, scratch, null);
+		counts[0] += opencv_core.cvCountNonZero(scratch);
+		opencv_core.cvOr(a, b, scratch, null);
+		counts[1] += opencv_core.cvCountNonZero(scratch);
+	}
+
+	public static double jaccard(long[] counts) {
+		return counts[1] == 0 ? 1 : (double) counts[0] / counts[1];
+	}
+
+	public static String describe(String label, LatencyHistogram histogram) {
+		return String.format("%-12s %6d frames, mean %.2f ms, p50 %.2f ms, p99 %.2f ms, max %.2f ms", label,
+				histogram.getCount(), histogram.getMean() / 1e6, histogram.getPercentile(50) / 1e6,
+				histogram.getPercentile(99) / 1e6, histogram.getMax() / 1e6);
+	}
+}
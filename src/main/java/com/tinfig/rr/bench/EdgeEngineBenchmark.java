@@ -0,0 +1,134 @@
+package com.tinfig.rr.bench;
+
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.tinfig.rr.Frame;
+import com.tinfig.rr.ImagePool;
+import com.tinfig.rr.Settings;
+import com.tinfig.rr.metrics.LatencyHistogram;
+import com.tinfig.rr.processors.EdgeEngine;
+import com.tinfig.rr.processors.MotionDetector;
+import com.tinfig.rr.sources.ReplayFrameSource;
+
+/**
+ * Runs {@link MotionDetector} with each {@link EdgeEngine} on the same
+ * recorded frames, and reports how long each took and how well the edges and
+ * the building features they found agree.
+ * <p>
+ * The accumulator is turned off (alpha 1) so each frame's features can be
+ * compared on their own.
+ */
+public class EdgeEngineBenchmark {
+	private static final EdgeEngine[] ENGINES = EdgeEngine.values();
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("s", "settings", true, "Camera settings file to start from (default built-in settings)");
+		options.addOption("w", "warmup", true, "Frames to run before timing (default 30)");
+		options.addOption("r", "sequence-rate", true, "Frame rate images in a directory were recorded at (default 30)");
+		options.addOption("h", "help", false, "Shows help");
+
+		CommandLine line = new PosixParser().parse(options, args);
+		if (line.hasOption("help") || line.getArgs().length == 0) {
+			new HelpFormatter().printHelp(EdgeEngineBenchmark.class.getSimpleName() + " [options] video-or-dir...",
+					options);
+			return;
+		}
+
+		int warmup = Integer.parseInt(line.getOptionValue("warmup", "30"));
+		double sequenceFrameRate = Double.parseDouble(line.getOptionValue("sequence-rate", "30"));
+
+		ImagePool pool = new ImagePool();
+		MotionDetector[] detectors = new MotionDetector[ENGINES.length];
+		Frame[] frames = new Frame[ENGINES.length];
+		LatencyHistogram[] latency = new LatencyHistogram[ENGINES.length];
+		long[] rectangles = new long[ENGINES.length];
+		Settings[] settings = new Settings[ENGINES.length];
+
+		for (int i = 0; i < ENGINES.length; i++) {
+			settings[i] = Benchmarks.loadSettings(line.getOptionValue("settings"));
+			settings[i].set("rectangle.edgeEngine", ENGINES[i]);
+			settings[i].set("rectangle.accumulatorAlpha", 1.0);
+			settings[i].set("rectangle.showCanny", true);
+
+			frames[i] = new Frame();
+			frames[i].setName(ENGINES[i].toString());
+			frames[i].setImagePool(pool);
+
+			detectors[i] = new MotionDetector();
+			detectors[i].start(frames[i], settings[i]);
+			latency[i] = new LatencyHistogram();
+		}
+
+		long[] overlap = new long[2];
+		long[] edgeOverlap = new long[2];
+		long frameCount = 0;
+		IplImage scratch = null;
+		IplImage edgeScratch = null;
+
+		List<ReplayFrameSource> sources = Benchmarks.openSources(line.getArgs(), sequenceFrameRate);
+		for (ReplayFrameSource source : sources) {
+			source.start();
+			IplImage grabbed;
+			while ((grabbed = source.grab()) != null) {
+				for (int i = 0; i < ENGINES.length; i++) {
+					if (frames[i].getVideoImage() == null) {
+						frames[i].setVideoImage(pool.borrow(frames[i], grabbed.cvSize(), grabbed.depth(),
+								grabbed.nChannels()));
+					}
+					opencv_core.cvCopy(grabbed, frames[i].getVideoImage());
+
+					long start = System.nanoTime();
+					detectors[i].process(frames[i]);
+					long elapsed = System.nanoTime() - start;
+
+					if (frameCount >= warmup) {
+						latency[i].record(elapsed);
+						rectangles[i] += frames[i].getInt(MotionDetector.RECTANGLE_COUNT);
+					}
+				}
+
+				if (frameCount >= warmup) {
+					IplImage features = frames[0].get(MotionDetector.BUILDING_FEATURES);
+					if (scratch == null) {
+						scratch = pool.borrow(EdgeEngineBenchmark.class, features.cvSize(), opencv_core.IPL_DEPTH_8U,
+								1);
+					}
+					Benchmarks.addOverlap(features, frames[1].get(MotionDetector.BUILDING_FEATURES), scratch, overlap);
+
+					IplImage edges = frames[0].getDebugImages().get("canny");
+					if (edgeScratch == null) {
+						edgeScratch = pool.borrow(EdgeEngineBenchmark.class, edges.cvSize(), opencv_core.IPL_DEPTH_8U,
+								1);
+					}
+					Benchmarks.addOverlap(edges, frames[1].getDebugImages().get("canny"), edgeScratch, edgeOverlap);
+				}
+				frameCount++;
+			}
+			source.stop();
+		}
+
+		for (int i = 0; i < ENGINES.length; i++) {
+			long timed = latency[i].getCount();
+			System.out.println(Benchmarks.describe(ENGINES[i].toString(), latency[i])
+					+ String.format(", %.1f rectangles/frame", timed == 0 ? 0 : (double) rectangles[i] / timed));
+		}
+		System.out.println(String.format("Edge pixel agreement (Jaccard): %.3f", Benchmarks.jaccard(edgeOverlap)));
+		System.out.println(String.format("Building feature agreement (Jaccard): %.3f", Benchmarks.jaccard(overlap)));
+
+		for (int i = 0; i < ENGINES.length; i++) {
+			detectors[i].stop(settings[i]);
+			pool.releaseAll(frames[i]);
+		}
+		pool.releaseAll(EdgeEngineBenchmark.class);
+		pool.reportLeaks();
+		pool.clear();
+	}
+}
@@ -0,0 +1,145 @@
+package com.tinfig.rr.bench;
+
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.tinfig.rr.Frame;
+import com.tinfig.rr.ImagePool;
+import com.tinfig.rr.Settings;
+import com.tinfig.rr.metrics.LatencyHistogram;
+import com.tinfig.rr.processors.FeatureDetectorType;
+import com.tinfig.rr.processors.FlowDetector;
+import com.tinfig.rr.processors.MotionDetector;
+import com.tinfig.rr.sources.ReplayFrameSource;
+
+/**
+ * Runs {@link FlowDetector} with each {@link FeatureDetectorType} on the
+ * building features {@link MotionDetector} finds in recorded frames, and
+ * reports how long frames that looked for new points took, how long each
+ * call to the feature detector took, how many tracked points survived each
+ * frame, and how much flow was measured.
+ */
+public class FeatureDetectorBenchmark {
+	private static final FeatureDetectorType[] TYPES = FeatureDetectorType.values();
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("s", "settings", true, "Camera settings file to start from (default built-in settings)");
+		options.addOption("w", "warmup", true, "Frames to run before timing (default 30)");
+		options.addOption("r", "sequence-rate", true, "Frame rate images in a directory were recorded at (default 30)");
+		options.addOption("h", "help", false, "Shows help");
+
+		CommandLine line = new PosixParser().parse(options, args);
+		if (line.hasOption("help") || line.getArgs().length == 0) {
+			new HelpFormatter().printHelp(FeatureDetectorBenchmark.class.getSimpleName()
+					+ " [options] video-or-dir...", options);
+			return;
+		}
+
+		int warmup = Integer.parseInt(line.getOptionValue("warmup", "30"));
+		double sequenceFrameRate = Double.parseDouble(line.getOptionValue("sequence-rate", "30"));
+
+		ImagePool pool = new ImagePool();
+
+		Settings motionSettings = Benchmarks.loadSettings(line.getOptionValue("settings"));
+		Frame motionFrame = new Frame();
+		motionFrame.setName("Motion");
+		motionFrame.setImagePool(pool);
+		MotionDetector motionDetector = new MotionDetector();
+		motionDetector.start(motionFrame, motionSettings);
+
+		FlowDetector[] detectors = new FlowDetector[TYPES.length];
+		Frame[] frames = new Frame[TYPES.length];
+		Settings[] settings = new Settings[TYPES.length];
+		LatencyHistogram[] replenishLatency = new LatencyHistogram[TYPES.length];
+		LatencyHistogram[] trackLatency = new LatencyHistogram[TYPES.length];
+		long[] candidates = new long[TYPES.length];
+		long[] survivors = new long[TYPES.length];
+		long[] flow = new long[TYPES.length];
+		long[] detectCalls = new long[TYPES.length];
+		double[] detectNanos = new double[TYPES.length];
+		int[] tracked = new int[TYPES.length];
+
+		for (int i = 0; i < TYPES.length; i++) {
+			settings[i] = Benchmarks.loadSettings(line.getOptionValue("settings"));
+			settings[i].set("flow.featureDetector", TYPES[i]);
+
+			frames[i] = new Frame();
+			frames[i].setName(TYPES[i].toString());
+			frames[i].setImagePool(pool);
+
+			detectors[i] = new FlowDetector();
+			detectors[i].start(frames[i], settings[i]);
+			replenishLatency[i] = new LatencyHistogram();
+			trackLatency[i] = new LatencyHistogram();
+		}
+
+		long frameCount = 0;
+		List<ReplayFrameSource> sources = Benchmarks.openSources(line.getArgs(), sequenceFrameRate);
+		for (ReplayFrameSource source : sources) {
+			source.start();
+			IplImage grabbed;
+			while ((grabbed = source.grab()) != null) {
+				if (motionFrame.getVideoImage() == null) {
+					motionFrame.setVideoImage(pool.borrow(motionFrame, grabbed.cvSize(), grabbed.depth(),
+							grabbed.nChannels()));
+				}
+				opencv_core.cvCopy(grabbed, motionFrame.getVideoImage());
+				motionDetector.process(motionFrame);
+				IplImage features = motionFrame.get(MotionDetector.BUILDING_FEATURES);
+
+				for (int i = 0; i < TYPES.length; i++) {
+					IplImage copy = frames[i].get(MotionDetector.BUILDING_FEATURES);
+					if (copy == null) {
+						copy = pool.borrow(frames[i], features.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+						frames[i].set(MotionDetector.BUILDING_FEATURES, copy);
+					}
+					opencv_core.cvCopy(features, copy);
+
+					long start = System.nanoTime();
+					detectors[i].process(frames[i]);
+					long elapsed = System.nanoTime() - start;
+
+					int added = frames[i].getInt(FlowDetector.NEW_POINTS);
+					int now = frames[i].getInt(FlowDetector.TRACKED_POINTS);
+					if (frameCount >= warmup) {
+						(added > 0 ? replenishLatency[i] : trackLatency[i]).record(elapsed);
+						candidates[i] += tracked[i] + added;
+						survivors[i] += now;
+						flow[i] += frames[i].getInt(FlowDetector.FLOW_THIS_FRAME);
+						detectCalls[i] += frames[i].getInt(FlowDetector.DETECT_CALLS);
+						detectNanos[i] += frames[i].getDouble(FlowDetector.DETECT_NANOS);
+					}
+					tracked[i] = now;
+				}
+				frameCount++;
+			}
+			source.stop();
+		}
+
+		for (int i = 0; i < TYPES.length; i++) {
+			long timed = replenishLatency[i].getCount() + trackLatency[i].getCount();
+			System.out.println(Benchmarks.describe(TYPES[i] + " new", replenishLatency[i]));
+			System.out.println(Benchmarks.describe(TYPES[i] + " track", trackLatency[i]));
+			System.out.println(String.format("%-12s %.1f us/call (%d calls), survival %.3f, %.1f flow/frame",
+					TYPES[i], detectCalls[i] == 0 ? 0 : detectNanos[i] / detectCalls[i] / 1000, detectCalls[i],
+					candidates[i] == 0 ? 0 : (double) survivors[i] / candidates[i], timed == 0 ? 0 : (double) flow[i]
+							/ timed));
+		}
+
+		for (int i = 0; i < TYPES.length; i++) {
+			detectors[i].stop(settings[i]);
+			pool.releaseAll(frames[i]);
+		}
+		motionDetector.stop(motionSettings);
+		pool.releaseAll(motionFrame);
+		pool.reportLeaks();
+		pool.clear();
+	}
+}
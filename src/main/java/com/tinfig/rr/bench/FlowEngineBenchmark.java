@@ -0,0 +1,146 @@
+package com.tinfig.rr.bench;
+
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.tinfig.rr.Frame;
+import com.tinfig.rr.ImagePool;
+import com.tinfig.rr.Settings;
+import com.tinfig.rr.metrics.LatencyHistogram;
+import com.tinfig.rr.processors.FlowDetector;
+import com.tinfig.rr.processors.FlowEngine;
+import com.tinfig.rr.processors.MotionDetector;
+import com.tinfig.rr.sources.ReplayFrameSource;
+
+/**
+ * Runs {@link FlowDetector} with each {@link FlowEngine} on the building
+ * features {@link MotionDetector} finds in recorded frames, and reports how
+ * long each took, how much flow each measured, and how closely the two follow
+ * each other frame by frame.
+ * <p>
+ * The ratio of the mean flows is the <code>flow.denseGain</code> that makes
+ * dense flow read like sparse flow for this footage.
+ */
+public class FlowEngineBenchmark {
+	private static final FlowEngine[] ENGINES = FlowEngine.values();
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("s", "settings", true, "Camera settings file to start from (default built-in settings)");
+		options.addOption("w", "warmup", true, "Frames to run before timing (default 30)");
+		options.addOption("r", "sequence-rate", true, "Frame rate images in a directory were recorded at (default 30)");
+		options.addOption("h", "help", false, "Shows help");
+
+		CommandLine line = new PosixParser().parse(options, args);
+		if (line.hasOption("help") || line.getArgs().length == 0) {
+			new HelpFormatter().printHelp(FlowEngineBenchmark.class.getSimpleName() + " [options] video-or-dir...",
+					options);
+			return;
+		}
+
+		int warmup = Integer.parseInt(line.getOptionValue("warmup", "30"));
+		double sequenceFrameRate = Double.parseDouble(line.getOptionValue("sequence-rate", "30"));
+
+		ImagePool pool = new ImagePool();
+
+		Settings motionSettings = Benchmarks.loadSettings(line.getOptionValue("settings"));
+		Frame motionFrame = new Frame();
+		motionFrame.setName("Motion");
+		motionFrame.setImagePool(pool);
+		MotionDetector motionDetector = new MotionDetector();
+		motionDetector.start(motionFrame, motionSettings);
+
+		FlowDetector[] detectors = new FlowDetector[ENGINES.length];
+		Frame[] frames = new Frame[ENGINES.length];
+		Settings[] settings = new Settings[ENGINES.length];
+		LatencyHistogram[] latency = new LatencyHistogram[ENGINES.length];
+		double[] flowSum = new double[ENGINES.length];
+		double[] flowSquaredSum = new double[ENGINES.length];
+		double flowProductSum = 0;
+		double[] flow = new double[ENGINES.length];
+
+		for (int i = 0; i < ENGINES.length; i++) {
+			settings[i] = Benchmarks.loadSettings(line.getOptionValue("settings"));
+			settings[i].set("flow.engine", ENGINES[i]);
+			settings[i].set("flow.denseGain", 1.0);
+
+			frames[i] = new Frame();
+			frames[i].setName(ENGINES[i].toString());
+			frames[i].setImagePool(pool);
+
+			detectors[i] = new FlowDetector();
+			detectors[i].start(frames[i], settings[i]);
+			latency[i] = new LatencyHistogram();
+		}
+
+		long frameCount = 0;
+		List<ReplayFrameSource> sources = Benchmarks.openSources(line.getArgs(), sequenceFrameRate);
+		for (ReplayFrameSource source : sources) {
+			source.start();
+			IplImage grabbed;
+			while ((grabbed = source.grab()) != null) {
+				if (motionFrame.getVideoImage() == null) {
+					motionFrame.setVideoImage(pool.borrow(motionFrame, grabbed.cvSize(), grabbed.depth(),
+							grabbed.nChannels()));
+				}
+				opencv_core.cvCopy(grabbed, motionFrame.getVideoImage());
+				motionDetector.process(motionFrame);
+				IplImage features = motionFrame.get(MotionDetector.BUILDING_FEATURES);
+
+				for (int i = 0; i < ENGINES.length; i++) {
+					IplImage copy = frames[i].get(MotionDetector.BUILDING_FEATURES);
+					if (copy == null) {
+						copy = pool.borrow(frames[i], features.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+						frames[i].set(MotionDetector.BUILDING_FEATURES, copy);
+					}
+					opencv_core.cvCopy(features, copy);
+
+					long start = System.nanoTime();
+					detectors[i].process(frames[i]);
+					long elapsed = System.nanoTime() - start;
+
+					flow[i] = frames[i].getInt(FlowDetector.FLOW_THIS_FRAME);
+					if (frameCount >= warmup) {
+						latency[i].record(elapsed);
+						flowSum[i] += flow[i];
+						flowSquaredSum[i] += flow[i] * flow[i];
+					}
+				}
+				if (frameCount >= warmup) {
+					flowProductSum += flow[0] * flow[1];
+				}
+				frameCount++;
+			}
+			source.stop();
+		}
+
+		long n = latency[0].getCount();
+		for (int i = 0; i < ENGINES.length; i++) {
+			System.out.println(Benchmarks.describe(ENGINES[i].toString(), latency[i])
+					+ String.format(", %.1f flow/frame", n == 0 ? 0 : flowSum[i] / n));
+		}
+		if (n > 0) {
+			double covariance = flowProductSum / n - (flowSum[0] / n) * (flowSum[1] / n);
+			double variance0 = flowSquaredSum[0] / n - (flowSum[0] / n) * (flowSum[0] / n);
+			double variance1 = flowSquaredSum[1] / n - (flowSum[1] / n) * (flowSum[1] / n);
+			double correlation = variance0 > 0 && variance1 > 0 ? covariance / Math.sqrt(variance0 * variance1) : 0;
+			System.out.println(String.format("Per-frame flow correlation: %.3f, dense gain to match sparse: %.4f",
+					correlation, flowSum[1] == 0 ? 0 : flowSum[0] / flowSum[1]));
+		}
+
+		for (int i = 0; i < ENGINES.length; i++) {
+			detectors[i].stop(settings[i]);
+			pool.releaseAll(frames[i]);
+		}
+		motionDetector.stop(motionSettings);
+		pool.releaseAll(motionFrame);
+		pool.reportLeaks();
+		pool.clear();
+	}
+}
@@ -0,0 +1,146 @@
+package com.tinfig.rr.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+import com.tinfig.rr.StreamingQuantile;
+import com.tinfig.rr.WindowedDoubleStats;
+import com.tinfig.rr.WindowedStats;
+
+/**
+ * Times adding a sample and then asking for the sum, average, minimum,
+ * maximum, and variance, for {@link WindowedStats} and
+ * {@link WindowedDoubleStats} at a range of window sizes, next to scanning the
+ * window for each answer the way they used to. Also times
+ * {@link StreamingQuantile} and compares its estimate with the exact quantile.
+ * <p>
+ * Samples are log-normal, like frame times. Scanning gets fewer samples at big
+ * window sizes so the run finishes.
+ */
+public class WindowedStatsBenchmark {
+	// Samples in the warmup run of each variant, before timing
+	private static final int WARMUP_SAMPLES = 20000;
+	// Scanning is cut short after this many samples times the window size
+	private static final long MAX_SCAN_WORK = 200000000L;
+
+	// Keeps results alive so the JIT can't drop the work
+	private static double sink;
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("n", "samples", true, "Samples to add at each window size (default 1000000)");
+		options.addOption("z", "sizes", true, "Comma-separated window sizes (default 10,100,1000,10000,100000)");
+		options.addOption("q", "quantile", true, "Quantile to estimate (default 0.99)");
+		options.addOption("h", "help", false, "Shows help");
+
+		CommandLine line = new PosixParser().parse(options, args);
+		if (line.hasOption("help")) {
+			new HelpFormatter().printHelp(WindowedStatsBenchmark.class.getSimpleName() + " [options]", options);
+			return;
+		}
+
+		int samples = Integer.parseInt(line.getOptionValue("samples", "1000000"));
+		String[] sizes = line.getOptionValue("sizes", "10,100,1000,10000,100000").split(",");
+		double quantile = Double.parseDouble(line.getOptionValue("quantile", "0.99"));
+
+		double[] values = new double[samples];
+		Random random = new Random(0);
+		for (int i = 0; i < samples; i++) {
+			values[i] = Math.exp(random.nextGaussian() * 0.5) * 1000;
+		}
+
+		for (String size : sizes) {
+			int windowSize = Integer.parseInt(size.trim());
+			int scanSamples = (int) Math.min(samples, Math.max(1000, MAX_SCAN_WORK / windowSize));
+
+			timeLong(windowSize, values, Math.min(WARMUP_SAMPLES, samples));
+			timeDouble(windowSize, values, Math.min(WARMUP_SAMPLES, samples));
+			timeScan(windowSize, values, Math.min(WARMUP_SAMPLES, scanSamples));
+
+			System.out.println(String.format("window %7d: long %8.1f ns/sample, double %8.1f ns/sample, "
+					+ "scan %10.1f ns/sample (%d samples)", windowSize, timeLong(windowSize, values, samples),
+					timeDouble(windowSize, values, samples), timeScan(windowSize, values, scanSamples), scanSamples));
+		}
+
+		StreamingQuantile warmup = new StreamingQuantile(quantile);
+		for (int i = 0; i < Math.min(WARMUP_SAMPLES, samples); i++) {
+			warmup.add(values[i]);
+		}
+		sink += warmup.get();
+
+		StreamingQuantile estimate = new StreamingQuantile(quantile);
+		long start = System.nanoTime();
+		for (double value : values) {
+			estimate.add(value);
+		}
+		double elapsed = System.nanoTime() - start;
+
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		double exact = sorted[(int) Math.round(quantile * (sorted.length - 1))];
+		System.out.println(String.format("quantile %.3f: %.1f ns/sample, estimate %.2f, exact %.2f, error %.2f%%",
+				quantile, elapsed / samples, estimate.get(), exact, 100 * (estimate.get() - exact) / exact));
+
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+
+	private static double timeLong(int windowSize, double[] values, int samples) {
+		WindowedStats stats = new WindowedStats(windowSize);
+		long start = System.nanoTime();
+		for (int i = 0; i < samples; i++) {
+			stats.add((long) values[i]);
+			sink += stats.sum() + stats.average() + stats.min() + stats.max() + stats.variance();
+		}
+		return (double) (System.nanoTime() - start) / samples;
+	}
+
+	private static double timeDouble(int windowSize, double[] values, int samples) {
+		WindowedDoubleStats stats = new WindowedDoubleStats(windowSize);
+		long start = System.nanoTime();
+		for (int i = 0; i < samples; i++) {
+			stats.add(values[i]);
+			sink += stats.sum() + stats.average() + stats.min() + stats.max() + stats.variance();
+		}
+		return (double) (System.nanoTime() - start) / samples;
+	}
+
+	/**
+	 * The old way: one pass over the window per answer.
+	 */
+	private static double timeScan(int windowSize, double[] values, int samples) {
+		double[] window = new double[windowSize];
+		int index = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < samples; i++) {
+			window[index] = values[i];
+			index = (index + 1) % windowSize;
+
+			double sum = 0;
+			for (double v : window) {
+				sum += v;
+			}
+			double min = Double.MAX_VALUE;
+			for (double v : window) {
+				min = Math.min(min, v);
+			}
+			double max = -Double.MAX_VALUE;
+			for (double v : window) {
+				max = Math.max(max, v);
+			}
+			double mean = sum / windowSize;
+			double squares = 0;
+			for (double v : window) {
+				squares += (v - mean) * (v - mean);
+			}
+			sink += sum + mean + min + max + squares / windowSize;
+		}
+		return (double) (System.nanoTime() - start) / samples;
+	}
+}
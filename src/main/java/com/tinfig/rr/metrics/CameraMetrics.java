@@ -0,0 +1,39 @@
+package com.tinfig.rr.metrics;
+
+import com.tinfig.rr.PipelineRunner;
+import com.tinfig.rr.sources.AsyncFrameSource;
+import com.tinfig.rr.sources.FrameSource;
+
+/**
+ * Whole-pipeline metrics for one camera.
+ */
+public class CameraMetrics extends ProcessorMetrics implements CameraMetricsMBean {
+	private final PipelineRunner runner;
+	private final FrameSource source;
+
+	public CameraMetrics(PipelineRunner runner, FrameSource source) {
+		this.runner = runner;
+		this.source = source;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return runner.getQueueDepth();
+	}
+
+	@Override
+	public long getCapturedFrames() {
+		if (source instanceof AsyncFrameSource) {
+			return ((AsyncFrameSource) source).getCapturedFrames();
+		}
+		return getFrames();
+	}
+
+	@Override
+	public long getDroppedFrames() {
+		if (source instanceof AsyncFrameSource) {
+			return ((AsyncFrameSource) source).getDroppedFrames();
+		}
+		return 0;
+	}
+}
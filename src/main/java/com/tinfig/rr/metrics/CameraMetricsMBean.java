@@ -0,0 +1,13 @@
+package com.tinfig.rr.metrics;
+
+/**
+ * JMX view of {@link CameraMetrics}. The inherited latency figures cover the
+ * whole processor chain for a frame.
+ */
+public interface CameraMetricsMBean extends ProcessorMetricsMBean {
+	int getQueueDepth();
+
+	long getCapturedFrames();
+
+	long getDroppedFrames();
+}
@@ -0,0 +1,39 @@
+package com.tinfig.rr.metrics;
+
+import com.tinfig.rr.ImagePool;
+
+/**
+ * Native memory held through the shared {@link ImagePool}.
+ */
+public class ImagePoolMetrics implements ImagePoolMetricsMBean {
+	private final ImagePool pool;
+
+	public ImagePoolMetrics(ImagePool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public long getBorrowedBytes() {
+		return pool.getBorrowedBytes();
+	}
+
+	@Override
+	public long getPooledBytes() {
+		return pool.getPooledBytes();
+	}
+
+	@Override
+	public long getCreatedImages() {
+		return pool.getCreated();
+	}
+
+	@Override
+	public long getReusedImages() {
+		return pool.getReused();
+	}
+
+	@Override
+	public String[] getUsage() {
+		return pool.getUsage();
+	}
+}
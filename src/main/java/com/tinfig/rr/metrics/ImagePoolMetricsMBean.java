@@ -0,0 +1,19 @@
+package com.tinfig.rr.metrics;
+
+/**
+ * JMX view of the shared {@link com.tinfig.rr.ImagePool}.
+ */
+public interface ImagePoolMetricsMBean {
+	long getBorrowedBytes();
+
+	long getPooledBytes();
+
+	long getCreatedImages();
+
+	long getReusedImages();
+
+	/**
+	 * @return one line per owner describing the native memory it holds
+	 */
+	String[] getUsage();
+}
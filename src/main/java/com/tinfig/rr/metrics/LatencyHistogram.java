@@ -0,0 +1,108 @@
+package com.tinfig.rr.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free log-linear histogram of durations in nanoseconds, in the style
+ * of HdrHistogram. Each power of two is split into 16 linear buckets, so
+ * reported percentiles are within about 6% of the true value. Recording is a
+ * couple of atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	// Enough buckets for values up to 2^40 ns (about 18 minutes)
+	private static final int MAX_SHIFT = 40 - SUB_BITS;
+	private static final int BUCKETS = (MAX_SHIFT + 2) * (SUB_COUNT / 2);
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		counts.incrementAndGet(indexOf(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+
+		long currentMax;
+		while (nanos > (currentMax = max.get())) {
+			if (max.compareAndSet(currentMax, nanos)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) total.get() / n;
+	}
+
+	/**
+	 * @param percentile
+	 *            0 to 100
+	 * @return the upper bound of the bucket containing the percentile, in
+	 *         nanoseconds, or 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(upperBoundOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+
+		// Shift so the top bits land in [SUB_COUNT / 2, SUB_COUNT)
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS + 1;
+		if (shift > MAX_SHIFT) {
+			return BUCKETS - 1;
+		}
+		return (shift * (SUB_COUNT / 2)) + (int) (value >>> shift);
+	}
+
+	static long upperBoundOf(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = index / (SUB_COUNT / 2) - 1;
+		long mantissa = index - shift * (SUB_COUNT / 2);
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,60 @@
+package com.tinfig.rr.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes metrics objects as MBeans under the <code>com.tinfig.rr</code>
+ * domain, so they can be watched with jconsole or VisualVM.
+ */
+public class Metrics {
+	public static final String DOMAIN = "com.tinfig.rr";
+
+	private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	private final List<ObjectName> registered = new ArrayList<>();
+
+	/**
+	 * @param type
+	 *            the kind of MBean ("Camera", "Processor", ...)
+	 * @param camera
+	 *            the camera name, or <code>null</code> for metrics shared by
+	 *            all cameras
+	 * @param name
+	 *            the MBean name within the camera, or <code>null</code>
+	 */
+	public void register(Object mbean, String type, String camera, String name) {
+		try {
+			StringBuilder sb = new StringBuilder(DOMAIN);
+			sb.append(":type=").append(type);
+			if (camera != null) {
+				sb.append(",camera=").append(ObjectName.quote(camera));
+			}
+			if (name != null) {
+				sb.append(",name=").append(ObjectName.quote(name));
+			}
+
+			ObjectName objectName = new ObjectName(sb.toString());
+			server.registerMBean(mbean, objectName);
+			registered.add(objectName);
+		} catch (JMException e) {
+			// Metrics are nice to have, never fatal
+			System.err.println("Could not register metrics " + type + " " + camera + " " + name + ": " + e);
+		}
+	}
+
+	public void unregisterAll() {
+		for (ObjectName objectName : registered) {
+			try {
+				server.unregisterMBean(objectName);
+			} catch (JMException e) {
+				System.err.println("Could not unregister metrics " + objectName + ": " + e);
+			}
+		}
+		registered.clear();
+	}
+}
@@ -0,0 +1,108 @@
+package com.tinfig.rr.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency, throughput and error counts for one processor (or a whole pipeline)
+ * on one camera.
+ */
+public class ProcessorMetrics implements ProcessorMetricsMBean {
+	private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong errors = new AtomicLong();
+
+	// Frame rate over the last completed window; only the recording thread
+	// writes these
+	private long windowStartNanos;
+	private long windowFrames;
+	private volatile double framesPerSecond;
+
+	/**
+	 * Records one call.
+	 * 
+	 * @param nanos
+	 *            how long the call took
+	 * @param failed
+	 *            whether it threw
+	 */
+	public void record(long nanos, boolean failed) {
+		latency.record(nanos);
+		if (failed) {
+			errors.incrementAndGet();
+		}
+		updateRate();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	@Override
+	public long getFrames() {
+		return latency.getCount();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.get();
+	}
+
+	@Override
+	public double getFramesPerSecond() {
+		return framesPerSecond;
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return latency.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return latency.getMax() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return latency.getPercentile(50) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getP90Millis() {
+		return latency.getPercentile(90) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getP99Millis() {
+		return latency.getPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getP999Millis() {
+		return latency.getPercentile(99.9) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public void reset() {
+		latency.reset();
+		errors.set(0);
+	}
+
+	private void updateRate() {
+		long now = System.nanoTime();
+		if (windowStartNanos == 0) {
+			windowStartNanos = now;
+		}
+
+		windowFrames++;
+		long elapsed = now - windowStartNanos;
+		if (elapsed >= RATE_WINDOW_NANOS) {
+			framesPerSecond = windowFrames * (double) RATE_WINDOW_NANOS / elapsed;
+			windowStartNanos = now;
+			windowFrames = 0;
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package com.tinfig.rr.metrics;
+
+/**
+ * JMX view of {@link ProcessorMetrics}. Times are in milliseconds.
+ */
+public interface ProcessorMetricsMBean {
+	long getFrames();
+
+	long getErrors();
+
+	double getFramesPerSecond();
+
+	double getMeanMillis();
+
+	double getMaxMillis();
+
+	double getP50Millis();
+
+	double getP90Millis();
+
+	double getP99Millis();
+
+	double getP999Millis();
+
+	void reset();
+}
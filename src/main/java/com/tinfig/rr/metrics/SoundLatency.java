@@ -0,0 +1,77 @@
+package com.tinfig.rr.metrics;
+
+/**
+ * How long it takes for motion seen by one camera to turn into sound: from
+ * frame capture until the sampler triggers a sample, and from frame capture
+ * until the sample is audible.
+ */
+public class SoundLatency implements SoundLatencyMBean {
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	private final LatencyHistogram trigger = new LatencyHistogram();
+	private final LatencyHistogram audible = new LatencyHistogram();
+
+	public void recordTrigger(long captureToTriggerNanos) {
+		trigger.record(captureToTriggerNanos);
+	}
+
+	public void recordAudible(long captureToAudibleNanos) {
+		audible.record(captureToAudibleNanos);
+	}
+
+	@Override
+	public long getTriggers() {
+		return trigger.getCount();
+	}
+
+	@Override
+	public double getTriggerMeanMillis() {
+		return trigger.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getTriggerP50Millis() {
+		return trigger.getPercentile(50) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getTriggerP99Millis() {
+		return trigger.getPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getTriggerMaxMillis() {
+		return trigger.getMax() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public long getAudibleCount() {
+		return audible.getCount();
+	}
+
+	@Override
+	public double getAudibleMeanMillis() {
+		return audible.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getAudibleP50Millis() {
+		return audible.getPercentile(50) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getAudibleP99Millis() {
+		return audible.getPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getAudibleMaxMillis() {
+		return audible.getMax() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public void reset() {
+		trigger.reset();
+		audible.reset();
+	}
+}
@@ -0,0 +1,28 @@
+package com.tinfig.rr.metrics;
+
+/**
+ * JMX view of {@link SoundLatency}. Times are in milliseconds.
+ */
+public interface SoundLatencyMBean {
+	long getTriggers();
+
+	double getTriggerMeanMillis();
+
+	double getTriggerP50Millis();
+
+	double getTriggerP99Millis();
+
+	double getTriggerMaxMillis();
+
+	long getAudibleCount();
+
+	double getAudibleMeanMillis();
+
+	double getAudibleP50Millis();
+
+	double getAudibleP99Millis();
+
+	double getAudibleMaxMillis();
+
+	void reset();
+}
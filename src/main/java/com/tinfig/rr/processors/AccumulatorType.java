@@ -0,0 +1,16 @@
+package com.tinfig.rr.processors;
+
+/**
+ * Which {@link FeatureAccumulator} {@link MotionDetector} uses.
+ */
+public enum AccumulatorType {
+	/**
+	 * 32-bit float average with <code>cvRunningAvg</code>.
+	 */
+	FLOAT,
+
+	/**
+	 * 16-bit fixed-point average, updated and converted back in one pass.
+	 */
+	FIXED
+}
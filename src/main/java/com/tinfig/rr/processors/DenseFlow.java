@@ -0,0 +1,186 @@
+package com.tinfig.rr.processors;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvPoint;
+import com.googlecode.javacv.cpp.opencv_core.CvScalar;
+import com.googlecode.javacv.cpp.opencv_core.CvSize;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_imgproc;
+import com.googlecode.javacv.cpp.opencv_video;
+import com.tinfig.rr.ImagePool;
+
+/**
+ * Farneback dense optical flow between shrunken copies of successive
+ * building features images, added up over the feature pixels.
+ * <p>
+ * Every frame costs the same, however many features there are. Not
+ * thread-safe.
+ */
+class DenseFlow {
+	private static final double PYRAMID_SCALE = 0.5;
+	private static final int PYRAMID_LEVELS = 3;
+	private static final int WINDOW_SIZE = 9;
+	private static final int ITERATIONS = 3;
+	private static final int POLY_N = 5;
+	private static final double POLY_SIGMA = 1.1;
+
+	// Spacing of the vectors drawn on the debug image, in shrunken pixels
+	private static final int DRAW_SPACING = 4;
+
+	private final ImagePool pool;
+	private final Object owner;
+
+	private int scale;
+	private IplImage previous;
+	private IplImage current;
+	private IplImage flow;
+	private boolean ready;
+	private int movingPixels;
+
+	private float[] flowRow = new float[0];
+	private byte[] featureRow = new byte[0];
+	private final CvPoint start = new CvPoint();
+	private final CvPoint end = new CvPoint();
+
+	/**
+	 * @param owner
+	 *            who the images are charged to in the pool
+	 */
+	DenseFlow(ImagePool pool, Object owner) {
+		this.pool = pool;
+		this.owner = owner;
+	}
+
+	/**
+	 * Measures how the features moved since the last call.
+	 *
+	 * @param scale
+	 *            how many times smaller to make the images first
+	 * @param minMotion
+	 *            how far, in full size pixels, a pixel has to move to count
+	 * @param gain
+	 *            what each pixel's motion is multiplied by
+	 * @param grid
+	 *            grid to add each pixel's motion to, already begun for this
+	 *            frame
+	 * @param debug
+	 *            image to draw motion vectors on, or <code>null</code>
+	 * @return how far, in full size pixels, the feature pixels moved, added up
+	 *         and multiplied by the gain; 0 on the first call
+	 */
+	public double update(IplImage features, int scale, double minMotion, double gain, FlowGrid grid,
+			IplImage debug) {
+		int width = Math.max(1, features.width() / scale);
+		int height = Math.max(1, features.height() / scale);
+		if (current == null || scale != this.scale || current.width() != width || current.height() != height) {
+			release();
+			this.scale = scale;
+			CvSize size = new CvSize(width, height);
+			previous = pool.borrow(owner, size, opencv_core.IPL_DEPTH_8U, 1);
+			current = pool.borrow(owner, size, opencv_core.IPL_DEPTH_8U, 1);
+			flow = pool.borrow(owner, size, opencv_core.IPL_DEPTH_32F, 2);
+			flowRow = new float[width * 2];
+			featureRow = new byte[width];
+		}
+
+		opencv_imgproc.cvResize(features, current, opencv_imgproc.CV_INTER_AREA);
+
+		double sum = 0;
+		movingPixels = 0;
+		if (ready) {
+			opencv_video.cvCalcOpticalFlowFarneback(previous, current, flow, PYRAMID_SCALE, PYRAMID_LEVELS,
+					WINDOW_SIZE, ITERATIONS, POLY_N, POLY_SIGMA, 0);
+			sum = addUp(minMotion / scale, gain, grid, debug);
+		}
+
+		IplImage swap = previous;
+		previous = current;
+		current = swap;
+		ready = true;
+		return sum;
+	}
+
+	/**
+	 * @return how many shrunken feature pixels moved far enough to count in
+	 *         the last update
+	 */
+	public int getMovingPixels() {
+		return movingPixels;
+	}
+
+	/**
+	 * @return <code>true</code> once there's a previous image to measure
+	 *         motion from
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Forgets the previous image, so the next update starts over.
+	 */
+	public void reset() {
+		ready = false;
+	}
+
+	public void release() {
+		if (current != null) {
+			pool.release(owner, previous);
+			pool.release(owner, current);
+			pool.release(owner, flow);
+			previous = null;
+			current = null;
+			flow = null;
+		}
+		ready = false;
+	}
+
+	/**
+	 * @param minMotion
+	 *            in shrunken pixels
+	 */
+	private double addUp(double minMotion, double gain, FlowGrid grid, IplImage debug) {
+		// Flow is measured at each pixel of the previous image
+		ByteBuffer featureBuffer = previous.getByteBuffer();
+		FloatBuffer flowBuffer = flow.getFloatBuffer();
+		int flowStep = flow.widthStep() / 4;
+		double minMotionSquared = minMotion * minMotion;
+
+		double sum = 0;
+		for (int y = 0; y < current.height(); y++) {
+			featureBuffer.position(y * previous.widthStep());
+			featureBuffer.get(featureRow, 0, current.width());
+			flowBuffer.position(y * flowStep);
+			flowBuffer.get(flowRow, 0, current.width() * 2);
+
+			for (int x = 0; x < current.width(); x++) {
+				if (featureRow[x] == 0) {
+					continue;
+				}
+
+				float dx = flowRow[x * 2];
+				float dy = flowRow[x * 2 + 1];
+				double lengthSquared = dx * dx + dy * dy;
+				if (lengthSquared < minMotionSquared) {
+					continue;
+				}
+
+				double motion = Math.sqrt(lengthSquared) * scale * gain;
+				sum += motion;
+				grid.add(x * scale + scale / 2, y * scale + scale / 2, motion);
+				movingPixels++;
+
+				if (debug != null && x % DRAW_SPACING == 0 && y % DRAW_SPACING == 0) {
+					start.x(x * scale + scale / 2).y(y * scale + scale / 2);
+					end.x(Math.round(start.x() + dx * scale)).y(Math.round(start.y() + dy * scale));
+					opencv_core.cvLine(debug, start, end, CvScalar.WHITE, 1, opencv_core.CV_AA, 0);
+					opencv_core.cvCircle(debug, start, 3, CvScalar.WHITE, -1, opencv_core.CV_AA, 0);
+				}
+			}
+		}
+		return sum;
+	}
+}
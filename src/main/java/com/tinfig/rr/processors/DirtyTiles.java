@@ -0,0 +1,316 @@
+package com.tinfig.rr.processors;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_imgproc;
+import com.tinfig.rr.ImagePool;
+
+/**
+ * Splits the frame into square tiles and works out which ones changed since
+ * they were last processed, grouping touching changed tiles into regions so
+ * {@link MotionDetector} can reprocess just those and patch its cached
+ * results.
+ * <p>
+ * Each tile keeps the gray image it had when it was last processed, so slow
+ * changes add up until they cross the threshold rather than slipping by a
+ * little each frame. Each tile also remembers how many rectangles were found
+ * centred in it, so the cache's total is known without reprocessing clean
+ * tiles. Not thread-safe.
+ */
+class DirtyTiles {
+	private final ImagePool pool;
+	private final Object owner;
+
+	private int tileSize;
+	private int width;
+	private int height;
+	private int columns;
+	private int rows;
+
+	private IplImage gray;
+	private IplImage reference;
+	private IplImage difference;
+
+	private boolean[] dirty = new boolean[0];
+	private boolean[] seen = new boolean[0];
+	private int[] stack = new int[0];
+
+	// Tiles of every region, one region after another
+	private int[] regionTiles = new int[0];
+	// Where each region's tiles start in regionTiles, plus one past the end
+	private int[] regionStarts = new int[1];
+	// Pixel bounds of each region as x, y, width, height
+	private int[] regionBounds = new int[0];
+	private int regionCount;
+	// The region each tile belongs to this update, or -1 if it's clean
+	private int[] tileRegions = new int[0];
+
+	// Rectangles centred in each tile when it was last committed
+	private int[] tileRectangles = new int[0];
+	private int rectangleCount;
+
+	private int dirtyCount;
+
+	// Reset for each tile rather than created
+	private final CvRect tileBounds = new CvRect();
+
+	/**
+	 * @param owner
+	 *            who the images are charged to in the pool
+	 */
+	DirtyTiles(ImagePool pool, Object owner) {
+		this.pool = pool;
+		this.owner = owner;
+	}
+
+	/**
+	 * Compares the image with what each tile looked like when it was last
+	 * processed, and groups the changed tiles into regions.
+	 *
+	 * @param pixelThreshold
+	 *            how much a gray level has to change for the pixel to count
+	 * @param changedThreshold
+	 *            the fraction of a tile's pixels that have to change for the
+	 *            tile to be reprocessed
+	 * @param margin
+	 *            pixels of context added around each region
+	 * @param all
+	 *            mark every tile changed (the first frame, or after detection
+	 *            settings changed)
+	 */
+	public void update(IplImage image, int tileSize, int pixelThreshold, double changedThreshold, int margin,
+			boolean all) {
+		if (gray == null || tileSize != this.tileSize || image.width() != width || image.height() != height) {
+			allocate(image, tileSize);
+			all = true;
+		}
+
+		if (image.nChannels() == 1) {
+			opencv_core.cvCopy(image, gray);
+		} else {
+			opencv_imgproc.cvCvtColor(image, gray, opencv_imgproc.CV_BGR2GRAY);
+		}
+
+		dirtyCount = 0;
+		if (all) {
+			for (int i = 0; i < dirty.length; i++) {
+				dirty[i] = true;
+			}
+			dirtyCount = dirty.length;
+		} else {
+			opencv_core.cvAbsDiff(gray, reference, difference);
+			opencv_core.cvCmpS(difference, pixelThreshold, difference, opencv_core.CV_CMP_GT);
+
+			for (int row = 0; row < rows; row++) {
+				for (int column = 0; column < columns; column++) {
+					CvRect rect = tileRect(column, row);
+					opencv_core.cvSetImageROI(difference, rect);
+					int changed = opencv_core.cvCountNonZero(difference);
+					int tile = row * columns + column;
+					dirty[tile] = changed > changedThreshold * rect.width() * rect.height();
+					if (dirty[tile]) {
+						dirtyCount++;
+					}
+				}
+			}
+			opencv_core.cvResetImageROI(difference);
+		}
+
+		findRegions(margin);
+	}
+
+	/**
+	 * @return the number of tiles that changed
+	 */
+	public int getDirtyCount() {
+		return dirtyCount;
+	}
+
+	/**
+	 * @return the number of tiles in the frame
+	 */
+	public int getTileCount() {
+		return dirty.length;
+	}
+
+	public int getRegionCount() {
+		return regionCount;
+	}
+
+	/**
+	 * Sets the rectangle to the pixels to reprocess for the region: its
+	 * changed tiles, plus the margin, clipped to the frame.
+	 *
+	 * @return the rectangle
+	 */
+	public CvRect getRegion(int region, CvRect rect) {
+		return rect.x(regionBounds[region * 4]).y(regionBounds[region * 4 + 1]).width(regionBounds[region * 4 + 2])
+				.height(regionBounds[region * 4 + 3]);
+	}
+
+	/**
+	 * Copies the changed tiles of the region from freshly computed results
+	 * into the cache, and remembers what those tiles look like now. Only the
+	 * tiles themselves are copied, never the margin, which didn't have the
+	 * context around it to be computed properly.
+	 */
+	public void commit(int region, IplImage computed, IplImage cache) {
+		for (int i = regionStarts[region]; i < regionStarts[region + 1]; i++) {
+			int tile = regionTiles[i];
+			CvRect rect = tileRect(tile % columns, tile / columns);
+			copy(computed, cache, rect);
+			copy(gray, reference, rect);
+			rectangleCount -= tileRectangles[tile];
+			tileRectangles[tile] = 0;
+		}
+	}
+
+	/**
+	 * Counts a rectangle found while reprocessing the region, after it was
+	 * committed. Rectangles centred outside the region's changed tiles (in
+	 * the margin) aren't counted, just as they aren't copied.
+	 *
+	 * @param x
+	 *            the rectangle's centre, in full size pixels
+	 */
+	public void countRectangle(int region, int x, int y) {
+		int column = Math.max(0, Math.min(columns - 1, x / tileSize));
+		int row = Math.max(0, Math.min(rows - 1, y / tileSize));
+		int tile = row * columns + column;
+		if (tileRegions[tile] == region) {
+			tileRectangles[tile]++;
+			rectangleCount++;
+		}
+	}
+
+	/**
+	 * @return the number of rectangles in the cache, from every tile's last
+	 *         commit
+	 */
+	public int getRectangleCount() {
+		return rectangleCount;
+	}
+
+	public void release() {
+		if (gray != null) {
+			pool.release(owner, gray);
+			pool.release(owner, reference);
+			pool.release(owner, difference);
+			gray = null;
+			reference = null;
+			difference = null;
+		}
+	}
+
+	private void allocate(IplImage image, int tileSize) {
+		release();
+
+		this.tileSize = tileSize;
+		width = image.width();
+		height = image.height();
+		columns = (width + tileSize - 1) / tileSize;
+		rows = (height + tileSize - 1) / tileSize;
+
+		gray = pool.borrow(owner, image.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+		reference = pool.borrow(owner, image.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+		difference = pool.borrow(owner, image.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+
+		int tiles = columns * rows;
+		dirty = new boolean[tiles];
+		seen = new boolean[tiles];
+		stack = new int[tiles];
+		regionTiles = new int[tiles];
+		regionStarts = new int[tiles + 1];
+		regionBounds = new int[tiles * 4];
+		tileRegions = new int[tiles];
+		tileRectangles = new int[tiles];
+		rectangleCount = 0;
+	}
+
+	/**
+	 * Flood fills the changed tiles into 4-connected groups.
+	 */
+	private void findRegions(int margin) {
+		for (int i = 0; i < seen.length; i++) {
+			seen[i] = false;
+			tileRegions[i] = -1;
+		}
+
+		regionCount = 0;
+		int next = 0;
+		for (int start = 0; start < dirty.length; start++) {
+			if (!dirty[start] || seen[start]) {
+				continue;
+			}
+
+			int minColumn = columns;
+			int maxColumn = -1;
+			int minRow = rows;
+			int maxRow = -1;
+
+			regionStarts[regionCount] = next;
+			int top = 0;
+			stack[top++] = start;
+			seen[start] = true;
+			while (top > 0) {
+				int tile = stack[--top];
+				regionTiles[next++] = tile;
+				tileRegions[tile] = regionCount;
+
+				int column = tile % columns;
+				int row = tile / columns;
+				minColumn = Math.min(minColumn, column);
+				maxColumn = Math.max(maxColumn, column);
+				minRow = Math.min(minRow, row);
+				maxRow = Math.max(maxRow, row);
+
+				if (column > 0) {
+					top = push(tile - 1, top);
+				}
+				if (column < columns - 1) {
+					top = push(tile + 1, top);
+				}
+				if (row > 0) {
+					top = push(tile - columns, top);
+				}
+				if (row < rows - 1) {
+					top = push(tile + columns, top);
+				}
+			}
+
+			int x = Math.max(minColumn * tileSize - margin, 0);
+			int y = Math.max(minRow * tileSize - margin, 0);
+			int right = Math.min((maxColumn + 1) * tileSize + margin, width);
+			int bottom = Math.min((maxRow + 1) * tileSize + margin, height);
+			regionBounds[regionCount * 4] = x;
+			regionBounds[regionCount * 4 + 1] = y;
+			regionBounds[regionCount * 4 + 2] = right - x;
+			regionBounds[regionCount * 4 + 3] = bottom - y;
+			regionCount++;
+		}
+		regionStarts[regionCount] = next;
+	}
+
+	private int push(int tile, int top) {
+		if (dirty[tile] && !seen[tile]) {
+			seen[tile] = true;
+			stack[top++] = tile;
+		}
+		return top;
+	}
+
+	private CvRect tileRect(int column, int row) {
+		int x = column * tileSize;
+		int y = row * tileSize;
+		return tileBounds.x(x).y(y).width(Math.min(tileSize, width - x)).height(Math.min(tileSize, height - y));
+	}
+
+	private static void copy(IplImage from, IplImage to, CvRect rect) {
+		opencv_core.cvSetImageROI(from, rect);
+		opencv_core.cvSetImageROI(to, rect);
+		opencv_core.cvCopy(from, to);
+		opencv_core.cvResetImageROI(from);
+		opencv_core.cvResetImageROI(to);
+	}
+}
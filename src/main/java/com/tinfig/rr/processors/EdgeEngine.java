@@ -0,0 +1,20 @@
+package com.tinfig.rr.processors;
+
+/**
+ * How {@link MotionDetector} finds edges in the color image.
+ */
+public enum EdgeEngine {
+	/**
+	 * Split into channels, run <code>cvCanny</code> on each, and OR the
+	 * results.
+	 */
+	SPLIT,
+
+	/**
+	 * One pass over the color image with {@link FusedCanny}. Not offered in
+	 * the controls until {@link com.tinfig.rr.bench.EdgeEngineBenchmark} shows
+	 * it beating SPLIT on recorded footage; set
+	 * <code>rectangle.edgeEngine</code> to try it.
+	 */
+	FUSED
+}
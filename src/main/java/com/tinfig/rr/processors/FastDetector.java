@@ -0,0 +1,207 @@
+package com.tinfig.rr.processors;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.tinfig.rr.Check;
+
+/**
+ * FAST corners: a pixel is a corner if at least 9 contiguous pixels of the
+ * 16 on a circle of radius 3 round it are all brighter, or all darker, than
+ * it by more than a threshold. Corners are scored by how far past the
+ * threshold the circle is, thinned to local maxima in 3x3 neighbourhoods,
+ * then taken strongest first, skipping any too close to one already taken.
+ * <p>
+ * Only a handful of comparisons per pixel, against an eigenvalue per pixel for
+ * Shi-Tomasi. Buffers are kept between calls. Not thread-safe.
+ */
+class FastDetector implements FeatureDetector {
+	private static final int[] CIRCLE_X = { 0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3, -3, -3, -2, -1 };
+	private static final int[] CIRCLE_Y = { -3, -3, -2, -1, 0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3 };
+	private static final int ARC = 9;
+	private static final int RADIUS = 3;
+
+	private int threshold = 20;
+
+	private int width;
+	private int height;
+	private byte[] pixels = new byte[0];
+	private byte[] maskPixels = new byte[0];
+	private int[] scores = new int[0];
+	private long[] candidates = new long[0];
+	private final int[] circle = new int[CIRCLE_X.length];
+	private final int[] difference = new int[CIRCLE_X.length];
+
+	/**
+	 * @param threshold
+	 *            how much brighter or darker than the centre the circle has to
+	 *            be
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	@Override
+	public int detect(IplImage image, IplImage mask, CvRect region, int max, double minDistance, float[] points) {
+		Check.isTrue(image.depth() == opencv_core.IPL_DEPTH_8U && image.nChannels() == 1,
+				"Image must be an 8-bit, 1 channel image");
+
+		allocate(region.width(), region.height());
+		read(image, region, pixels);
+		if (mask != null) {
+			read(mask, region, maskPixels);
+		}
+
+		// Score every pixel far enough from the edge for its circle to fit
+		Arrays.fill(scores, 0, width * height, 0);
+		for (int y = RADIUS; y < height - RADIUS; y++) {
+			for (int x = RADIUS; x < width - RADIUS; x++) {
+				int i = y * width + x;
+				if (mask == null || maskPixels[i] != 0) {
+					scores[i] = score(i);
+				}
+			}
+		}
+
+		// Keep local maxima, ties going to the first in reading order
+		int count = 0;
+		for (int y = RADIUS; y < height - RADIUS; y++) {
+			for (int x = RADIUS; x < width - RADIUS; x++) {
+				int i = y * width + x;
+				int s = scores[i];
+				if (s == 0) {
+					continue;
+				}
+				if (s > scores[i - width - 1] && s > scores[i - width] && s > scores[i - width + 1] && s > scores[i - 1]
+						&& s >= scores[i + 1] && s >= scores[i + width - 1] && s >= scores[i + width]
+						&& s >= scores[i + width + 1]) {
+					candidates[count++] = ((long) s << 32) | i;
+				}
+			}
+		}
+
+		// Strongest first, spaced out
+		Arrays.sort(candidates, 0, count);
+		double minDistanceSquared = minDistance * minDistance;
+		int found = 0;
+		for (int c = count - 1; c >= 0 && found < max; c--) {
+			int i = (int) candidates[c];
+			int x = i % width;
+			int y = i / width;
+
+			boolean isFar = true;
+			for (int j = 0; j < found && isFar; j++) {
+				double dx = points[j * 2] - x;
+				double dy = points[j * 2 + 1] - y;
+				isFar = dx * dx + dy * dy >= minDistanceSquared;
+			}
+			if (isFar) {
+				points[found * 2] = x;
+				points[found * 2 + 1] = y;
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the sum of how far past the threshold the circle pixels are, or
+	 *         0 if it's not a corner
+	 */
+	private int score(int i) {
+		int centre = pixels[i] & 0xff;
+
+		// Any arc of 9 includes at least two of the four compass points
+		int brighter = 0;
+		int darker = 0;
+		for (int k = 0; k < CIRCLE_X.length; k += 4) {
+			int d = (pixels[i + circle[k]] & 0xff) - centre;
+			if (d > threshold) {
+				brighter++;
+			} else if (d < -threshold) {
+				darker++;
+			}
+		}
+		if (brighter < 2 && darker < 2) {
+			return 0;
+		}
+
+		for (int k = 0; k < CIRCLE_X.length; k++) {
+			difference[k] = (pixels[i + circle[k]] & 0xff) - centre;
+		}
+
+		int score = 0;
+		if (brighter >= 2 && hasArc(1)) {
+			score = Math.max(score, arcScore(1));
+		}
+		if (darker >= 2 && hasArc(-1)) {
+			score = Math.max(score, arcScore(-1));
+		}
+		return score;
+	}
+
+	/**
+	 * @param sign
+	 *            1 to look for brighter pixels, -1 for darker
+	 */
+	private boolean hasArc(int sign) {
+		int run = 0;
+		// Go round one and a half times so arcs can wrap
+		for (int k = 0; k < CIRCLE_X.length + ARC - 1; k++) {
+			if (difference[k % CIRCLE_X.length] * sign > threshold) {
+				if (++run >= ARC) {
+					return true;
+				}
+			} else {
+				run = 0;
+			}
+		}
+		return false;
+	}
+
+	private int arcScore(int sign) {
+		int score = 0;
+		for (int k = 0; k < CIRCLE_X.length; k++) {
+			int d = difference[k] * sign - threshold;
+			if (d > 0) {
+				score += d;
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Grows the buffers to fit, so regions of slightly different sizes don't
+	 * each reallocate them.
+	 */
+	private void allocate(int width, int height) {
+		this.width = width;
+		this.height = height;
+		if (pixels.length < width * height) {
+			pixels = new byte[width * height];
+			maskPixels = new byte[width * height];
+			scores = new int[width * height];
+			candidates = new long[width * height];
+		}
+		for (int k = 0; k < CIRCLE_X.length; k++) {
+			circle[k] = CIRCLE_Y[k] * width + CIRCLE_X[k];
+		}
+	}
+
+	/**
+	 * Copies the region of interest into an array without row padding. This
+	 * happens for the image and the mask on every call, but it's one bulk get
+	 * per row: for an 80x60 cell it's around 1% of the time spent scoring, and
+	 * scoring straight from the native buffer instead was no faster.
+	 */
+	private void read(IplImage image, CvRect rect, byte[] target) {
+		ByteBuffer buffer = image.getByteBuffer();
+		for (int y = 0; y < height; y++) {
+			buffer.position((rect.y() + y) * image.widthStep() + rect.x());
+			buffer.get(target, y * width, width);
+		}
+	}
+}
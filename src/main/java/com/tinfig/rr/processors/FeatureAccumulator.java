@@ -0,0 +1,34 @@
+package com.tinfig.rr.processors;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * Smooths the building features over time with an exponential moving
+ * average, so features that flicker in and out settle down.
+ */
+public interface FeatureAccumulator {
+	/**
+	 * Adds this frame's features to the average, then replaces them with the
+	 * new average. The first frame becomes the average as it is.
+	 *
+	 * @param features
+	 *            an 8-bit, 1 channel image
+	 * @param alpha
+	 *            how much weight the new frame gets, 0 to 1
+	 */
+	void accumulate(IplImage features, double alpha);
+
+	/**
+	 * Writes the current average into the image without changing it.
+	 */
+	void read(IplImage features);
+
+	/**
+	 * @return <code>true</code> until the first frame has been accumulated
+	 */
+	boolean isEmpty();
+
+	AccumulatorType getType();
+
+	void release();
+}
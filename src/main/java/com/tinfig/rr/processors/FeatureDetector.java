@@ -0,0 +1,29 @@
+package com.tinfig.rr.processors;
+
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * Finds points worth tracking for {@link FlowDetector}.
+ */
+interface FeatureDetector {
+	/**
+	 * Finds up to <code>max</code> points in the image's region of interest,
+	 * strongest first, at least the minimum distance apart.
+	 *
+	 * @param image
+	 *            an 8-bit, 1 channel image
+	 * @param mask
+	 *            8-bit, 1 channel image with the same region of interest;
+	 *            points are only found where it's nonzero. May be
+	 *            <code>null</code>.
+	 * @param region
+	 *            the region of interest both images are set to, so it isn't
+	 *            read back from them
+	 * @param points
+	 *            receives the points as x, y pairs relative to the region of
+	 *            interest; must have room for <code>max</code> points
+	 * @return how many points were found
+	 */
+	int detect(IplImage image, IplImage mask, CvRect region, int max, double minDistance, float[] points);
+}
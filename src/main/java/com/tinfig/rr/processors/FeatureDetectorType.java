@@ -0,0 +1,17 @@
+package com.tinfig.rr.processors;
+
+/**
+ * How {@link FlowDetector} finds new points to track.
+ */
+public enum FeatureDetectorType {
+	/**
+	 * Shi-Tomasi corners with <code>cvGoodFeaturesToTrack</code>.
+	 */
+	SHI_TOMASI,
+
+	/**
+	 * FAST segment-test corners, much cheaper on the mostly binary building
+	 * features image.
+	 */
+	FAST
+}
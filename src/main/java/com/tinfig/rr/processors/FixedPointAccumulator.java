@@ -0,0 +1,93 @@
+package com.tinfig.rr.processors;
+
+import java.nio.ByteBuffer;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * Keeps the average as 16-bit 8.8 fixed point, updating it and rounding back
+ * to 8 bits in the same pass over the pixels.
+ * <p>
+ * Per pixel that's a byte read, a 16-bit read and write, and a byte write (6
+ * bytes), instead of <code>cvRunningAvg</code> and <code>cvConvert</code>
+ * each going over a 32-bit float image (14 bytes). Pixels are read from and
+ * written back to native memory a row at a time through a row buffer that
+ * stays in cache. Alpha is rounded to 1/256ths; the result stays within a
+ * gray level of the float version.
+ */
+public class FixedPointAccumulator implements FeatureAccumulator {
+	private char[] average;
+	// One row of pixels
+	private byte[] row;
+	private int width;
+	private int height;
+	private int step;
+
+	@Override
+	public void accumulate(IplImage features, double alpha) {
+		ByteBuffer buffer = features.getByteBuffer();
+
+		if (average == null) {
+			width = features.width();
+			height = features.height();
+			step = features.widthStep();
+			average = new char[width * height];
+			row = new byte[width];
+
+			for (int y = 0; y < height; y++) {
+				buffer.position(y * step);
+				buffer.get(row, 0, width);
+				int averageRow = y * width;
+				for (int x = 0; x < width; x++) {
+					average[averageRow + x] = (char) ((row[x] & 0xff) << 8);
+				}
+			}
+			return;
+		}
+
+		int weight = (int) Math.round(Math.max(0, Math.min(1, alpha)) * 256);
+
+		for (int y = 0; y < height; y++) {
+			buffer.position(y * step);
+			buffer.get(row, 0, width);
+			int averageRow = y * width;
+			for (int x = 0; x < width; x++) {
+				int value = average[averageRow + x];
+				value += (((row[x] & 0xff) << 8) - value) * weight >> 8;
+				average[averageRow + x] = (char) value;
+				row[x] = (byte) ((value + 128) >> 8);
+			}
+			buffer.position(y * step);
+			buffer.put(row, 0, width);
+		}
+	}
+
+	@Override
+	public void read(IplImage features) {
+		ByteBuffer buffer = features.getByteBuffer();
+		for (int y = 0; y < height; y++) {
+			int averageRow = y * width;
+			for (int x = 0; x < width; x++) {
+				row[x] = (byte) ((average[averageRow + x] + 128) >> 8);
+			}
+			buffer.position(y * step);
+			buffer.put(row, 0, width);
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return average == null;
+	}
+
+	@Override
+	public AccumulatorType getType() {
+		return AccumulatorType.FIXED;
+	}
+
+	@Override
+	public void release() {
+		average = null;
+		row = null;
+	}
+}
@@ -0,0 +1,60 @@
+package com.tinfig.rr.processors;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_imgproc;
+import com.tinfig.rr.ImagePool;
+
+/**
+ * Keeps the average in a 32-bit float image: <code>cvRunningAvg</code> to
+ * update it, then <code>cvConvert</code> back to 8 bits.
+ */
+public class FloatAccumulator implements FeatureAccumulator {
+	private final ImagePool pool;
+	private final Object owner;
+	private IplImage average;
+
+	/**
+	 * @param owner
+	 *            who the image is charged to in the pool
+	 */
+	public FloatAccumulator(ImagePool pool, Object owner) {
+		this.pool = pool;
+		this.owner = owner;
+	}
+
+	@Override
+	public void accumulate(IplImage features, double alpha) {
+		if (average == null) {
+			average = pool.borrow(owner, features.cvSize(), opencv_core.IPL_DEPTH_32F, 1);
+			opencv_core.cvConvert(features, average);
+		} else {
+			opencv_imgproc.cvRunningAvg(features, average, alpha, null);
+		}
+
+		opencv_core.cvConvert(average, features);
+	}
+
+	@Override
+	public void read(IplImage features) {
+		opencv_core.cvConvert(average, features);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return average == null;
+	}
+
+	@Override
+	public AccumulatorType getType() {
+		return AccumulatorType.FLOAT;
+	}
+
+	@Override
+	public void release() {
+		if (average != null) {
+			pool.release(owner, average);
+			average = null;
+		}
+	}
+}
@@ -2,11 +2,13 @@ package com.tinfig.rr.processors;
 
 import java.awt.Container;
 import java.awt.event.ItemEvent;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.ItemListener;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import javax.swing.JCheckBox;
+import javax.swing.JRadioButton;
 import javax.swing.JSlider;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -15,14 +17,15 @@ import org.apache.commons.configuration.ConfigurationException;
 
 import com.googlecode.javacv.cpp.opencv_core;
 import com.googlecode.javacv.cpp.opencv_core.CvPoint;
-import com.googlecode.javacv.cpp.opencv_core.CvPoint2D32f;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
 import com.googlecode.javacv.cpp.opencv_core.CvScalar;
 import com.googlecode.javacv.cpp.opencv_core.CvSize;
 import com.googlecode.javacv.cpp.opencv_core.CvTermCriteria;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
-import com.googlecode.javacv.cpp.opencv_imgproc;
 import com.googlecode.javacv.cpp.opencv_video;
+import com.tinfig.rr.ArtifactKey;
 import com.tinfig.rr.Frame;
+import com.tinfig.rr.ImagePool;
 import com.tinfig.rr.Processor;
 import com.tinfig.rr.Settings;
 
@@ -31,6 +34,39 @@ public class FlowDetector extends Processor {
 	 * Integer
 	 */
 	public static final String ARTIFACT_FLOW_THIS_FRAME = "flow.thisFrame";
+	public static final ArtifactKey<Integer> FLOW_THIS_FRAME = ArtifactKey.registerInt(ARTIFACT_FLOW_THIS_FRAME);
+
+	/**
+	 * Integer, how many points are being tracked after this frame (for the
+	 * dense engine, how many shrunken feature pixels moved)
+	 */
+	public static final String ARTIFACT_TRACKED_POINTS = "flow.trackedPoints";
+	public static final ArtifactKey<Integer> TRACKED_POINTS = ArtifactKey.registerInt(ARTIFACT_TRACKED_POINTS);
+
+	/**
+	 * Integer, how many new points were found to track this frame
+	 */
+	public static final String ARTIFACT_NEW_POINTS = "flow.newPoints";
+	public static final ArtifactKey<Integer> NEW_POINTS = ArtifactKey.registerInt(ARTIFACT_NEW_POINTS);
+
+	/**
+	 * Integer, how many cells the feature detector searched for new points
+	 * this frame
+	 */
+	public static final String ARTIFACT_DETECT_CALLS = "flow.detectCalls";
+	public static final ArtifactKey<Integer> DETECT_CALLS = ArtifactKey.registerInt(ARTIFACT_DETECT_CALLS);
+
+	/**
+	 * Double, nanoseconds spent in the feature detector this frame
+	 */
+	public static final String ARTIFACT_DETECT_NANOS = "flow.detectNanos";
+	public static final ArtifactKey<Double> DETECT_NANOS = ArtifactKey.registerDouble(ARTIFACT_DETECT_NANOS);
+
+	/**
+	 * {@link FlowGrid}, where in the frame the flow was measured
+	 */
+	public static final String ARTIFACT_FLOW_GRID = "flow.grid";
+	public static final ArtifactKey<FlowGrid> FLOW_GRID = ArtifactKey.register(ARTIFACT_FLOW_GRID, FlowGrid.class);
 
 	private static final int MAX_NEW_FEATURES = 1000;
 
@@ -38,19 +74,99 @@ public class FlowDetector extends Processor {
 	private static final String Q_LEVEL = "flow.qLevel";
 	private static final String MIN_DIST = "flow.minDist";
 	private static final String SHOW_FLOW = "flow.showFlow";
+	private static final String WINDOW_SIZE = "flow.windowSize";
+	private static final String PYRAMID_LEVELS = "flow.pyramidLevels";
+	private static final String MAX_ITERATIONS = "flow.maxIterations";
+	private static final String EPSILON = "flow.epsilon";
+	private static final String GRID_SIZE = "flow.gridSize";
+	private static final String CELLS_PER_FRAME = "flow.cellsPerFrame";
+	private static final String FEATURE_DETECTOR = "flow.featureDetector";
+	private static final String FAST_THRESHOLD = "flow.fastThreshold";
+	private static final String ENGINE = "flow.engine";
+	private static final String DENSE_SCALE = "flow.denseScale";
+	private static final String DENSE_MIN_MOTION = "flow.denseMinMotion";
+	private static final String DENSE_GAIN = "flow.denseGain";
+	private static final String FLOW_GRID_SIZE = "flow.flowGridSize";
+	private static final String FLOW_GRID_DECAY = "flow.flowGridDecay";
+	private static final String QUIET_FLOW = "flow.quietFlow";
+	private static final String QUIET_SEARCH_ROUNDS = "flow.quietSearchRounds";
 
 	private int minTrackedPoints = 100;
 
-	private List<CvPoint2D32f> initialPositions = new ArrayList<>();
-	private List<CvPoint2D32f> trackedPoints = new ArrayList<>();
+	// Points as x, y pairs: where each tracked point was first found, and
+	// where it is now. Filtering compacts them in place.
+	private float[] initialPositions = new float[0];
+	private float[] trackedPoints = new float[0];
+	private int pointCount;
+
+	// Reused every frame
+	private NativePoints previousPoints = new NativePoints(MAX_NEW_FEATURES);
+	private NativePoints currentPoints = new NativePoints(MAX_NEW_FEATURES);
+	private final float[] newPoints = new float[MAX_NEW_FEATURES * 2];
+	private int newPointCount;
+	private int detectCalls;
+	private long detectNanos;
+	private float[] movedPoints = new float[0];
+	private byte[] trackingStatus = new byte[0];
+	private float[] trackingError = new float[0];
+	private final CvSize window = new CvSize();
+	private final CvTermCriteria termCriteria = new CvTermCriteria();
+	private final CvPoint startPoint = new CvPoint();
+	private final CvPoint endPoint = new CvPoint();
 
 	private IplImage currentGray;
 	private IplImage previousGray;
+
 	private IplImage debug;
+	private ImagePool pool;
 
 	private boolean showFlow;
 	private double qLevel = 0.01;
 	private double minDist = 10;
+	private int windowSize = 21;
+	private int pyramidLevels = 3;
+	private int maxIterations = 30;
+	private double epsilon = 0.01;
+
+	// New points are searched for in a grid of gridSize x gridSize cells, a
+	// few cells a frame, only in cells short of their share of the points
+	private int gridSize = 4;
+	private int cellsPerFrame = 4;
+	private int[] cellCounts = new int[0];
+	private int nextCell;
+	// Cells left to visit before this round of replenishment is done
+	private int cellsToVisit;
+	private IplImage mask;
+	private final CvRect cell = new CvRect();
+	private final CvPoint maskPoint = new CvPoint();
+
+	private FeatureDetectorType featureDetectorType = FeatureDetectorType.SHI_TOMASI;
+	private int fastThreshold = 20;
+	private final ShiTomasiDetector shiTomasi = new ShiTomasiDetector();
+	private final FastDetector fast = new FastDetector();
+
+	private FlowEngine engine = FlowEngine.SPARSE;
+	// The engine the last frame was processed with
+	private FlowEngine lastEngine = FlowEngine.SPARSE;
+	private DenseFlow denseFlow;
+	private int denseScale = 4;
+	private double denseMinMotion = 1;
+	// Scales dense flow to match what sparse flow measures for the same motion,
+	// as printed by FlowEngineBenchmark. FlowTracker only compares flow with
+	// its own averages, so triggering doesn't depend on it.
+	private double denseGain = 1;
+
+	// Flow is also added up in a flowGridSize x flowGridSize grid, whose
+	// running totals keep flowGridDecay of themselves each frame
+	private final FlowGrid flowGrid = new FlowGrid();
+	private int flowGridSize = 8;
+	private double flowGridDecay = 0.8;
+	// Replenishment only searches cells whose running totals are all below
+	// quietFlow every quietSearchRounds rounds
+	private double quietFlow = 1;
+	private int quietSearchRounds = 4;
+	// Starts so the first round searches every cell
+	private int replenishRound = -1;
 
 	@Override
 	public void start(Frame frame, Settings settings) throws ConfigurationException {
@@ -58,8 +174,33 @@ public class FlowDetector extends Processor {
 		qLevel = settings.getDouble(Q_LEVEL, qLevel);
 		minDist = settings.getDouble(MIN_DIST, minDist);
 		showFlow = settings.getBoolean(SHOW_FLOW, showFlow);
+		windowSize = settings.getInteger(WINDOW_SIZE, windowSize);
+		pyramidLevels = settings.getInteger(PYRAMID_LEVELS, pyramidLevels);
+		maxIterations = settings.getInteger(MAX_ITERATIONS, maxIterations);
+		epsilon = settings.getDouble(EPSILON, epsilon);
+		gridSize = Math.max(1, settings.getInteger(GRID_SIZE, gridSize));
+		cellsPerFrame = Math.max(1, settings.getInteger(CELLS_PER_FRAME, cellsPerFrame));
+		featureDetectorType = FeatureDetectorType.valueOf(settings.getString(FEATURE_DETECTOR,
+				featureDetectorType.toString()));
+		fastThreshold = settings.getInteger(FAST_THRESHOLD, fastThreshold);
+		engine = FlowEngine.valueOf(settings.getString(ENGINE, engine.toString()));
+		denseScale = Math.max(1, settings.getInteger(DENSE_SCALE, denseScale));
+		denseMinMotion = settings.getDouble(DENSE_MIN_MOTION, denseMinMotion);
+		denseGain = settings.getDouble(DENSE_GAIN, denseGain);
+		flowGridSize = Math.max(1, settings.getInteger(FLOW_GRID_SIZE, flowGridSize));
+		flowGridDecay = settings.getDouble(FLOW_GRID_DECAY, flowGridDecay);
+		quietFlow = settings.getDouble(QUIET_FLOW, quietFlow);
+		quietSearchRounds = Math.max(1, settings.getInteger(QUIET_SEARCH_ROUNDS, quietSearchRounds));
+		pool = frame.getImagePool();
+		denseFlow = new DenseFlow(pool, this);
 
 		Container container = frame.getArtifact(ControlsProcessor.ARTIFACT_CONTROL_CONTAINER, Container.class);
+		if (container != null) {
+			createControls(container);
+		}
+	}
+
+	private void createControls(Container container) {
 		createSlider(container, "Min tracked points", 1, 1000, minTrackedPoints, new ChangeListener() {
 			@Override
 			public void stateChanged(ChangeEvent e) {
@@ -84,6 +225,74 @@ public class FlowDetector extends Processor {
 				showFlow = ((JCheckBox) e.getSource()).isSelected();
 			}
 		});
+		createRadioGroup(container, new String[] { "Sparse", "Dense" }, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				switch (((JRadioButton) e.getSource()).getText()) {
+				case "Sparse":
+					engine = FlowEngine.SPARSE;
+					break;
+				case "Dense":
+					engine = FlowEngine.DENSE;
+					break;
+				}
+			}
+		}, engine.toString(), "Flow engine");
+		createSlider(container, "Dense flow scale", 1, 16, denseScale, new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				denseScale = ((JSlider) e.getSource()).getValue();
+			}
+		});
+		createRadioGroup(container, new String[] { "Shi-Tomasi", "FAST" }, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				switch (((JRadioButton) e.getSource()).getText()) {
+				case "Shi-Tomasi":
+					featureDetectorType = FeatureDetectorType.SHI_TOMASI;
+					break;
+				case "FAST":
+					featureDetectorType = FeatureDetectorType.FAST;
+					break;
+				}
+			}
+		}, featureDetectorType == FeatureDetectorType.FAST ? "FAST" : "Shi-Tomasi", "Feature detector");
+		createSlider(container, "FAST threshold", 1, 100, fastThreshold, new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				fastThreshold = ((JSlider) e.getSource()).getValue();
+			}
+		});
+		createSlider(container, "Cells searched per frame", 1, 16, cellsPerFrame, new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				cellsPerFrame = ((JSlider) e.getSource()).getValue();
+			}
+		});
+		createSlider(container, "Search quiet cells every N rounds", 1, 16, quietSearchRounds, new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				quietSearchRounds = ((JSlider) e.getSource()).getValue();
+			}
+		});
+		createSlider(container, "Flow window size", 3, 51, windowSize, new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				windowSize = ((JSlider) e.getSource()).getValue();
+			}
+		});
+		createSlider(container, "Flow pyramid levels", 0, 5, pyramidLevels, new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				pyramidLevels = ((JSlider) e.getSource()).getValue();
+			}
+		});
+		createSlider(container, "Flow max iterations", 1, 100, maxIterations, new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				maxIterations = ((JSlider) e.getSource()).getValue();
+			}
+		});
 	}
 
 	@Override
@@ -92,149 +301,360 @@ public class FlowDetector extends Processor {
 		settings.set(Q_LEVEL, qLevel);
 		settings.set(MIN_DIST, minDist);
 		settings.set(SHOW_FLOW, showFlow);
+		settings.set(WINDOW_SIZE, windowSize);
+		settings.set(PYRAMID_LEVELS, pyramidLevels);
+		settings.set(MAX_ITERATIONS, maxIterations);
+		settings.set(EPSILON, epsilon);
+		settings.set(GRID_SIZE, gridSize);
+		settings.set(CELLS_PER_FRAME, cellsPerFrame);
+		settings.set(FEATURE_DETECTOR, featureDetectorType);
+		settings.set(FAST_THRESHOLD, fastThreshold);
+		settings.set(ENGINE, engine);
+		settings.set(DENSE_SCALE, denseScale);
+		settings.set(DENSE_MIN_MOTION, denseMinMotion);
+		settings.set(DENSE_GAIN, denseGain);
+		settings.set(FLOW_GRID_SIZE, flowGridSize);
+		settings.set(FLOW_GRID_DECAY, flowGridDecay);
+		settings.set(QUIET_FLOW, quietFlow);
+		settings.set(QUIET_SEARCH_ROUNDS, quietSearchRounds);
+
+		denseFlow.release();
+
+		for (IplImage image : new IplImage[] { currentGray, previousGray, mask, debug }) {
+			if (image != null) {
+				pool.release(this, image);
+			}
+		}
+		currentGray = null;
+		previousGray = null;
+		mask = null;
+		debug = null;
 	}
 
 	@Override
 	public void process(Frame frame) throws ConfigurationException {
-		IplImage rects = frame.getArtifact(MotionDetector.ARTIFACT_BUILDING_FEATURES, IplImage.class);
-
-		if (currentGray == null) {
-			currentGray = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
-		} else {
-			opencv_core.cvCopy(rects, currentGray);
+		IplImage rects = frame.get(MotionDetector.BUILDING_FEATURES);
+		flowGrid.begin(rects.width(), rects.height(), flowGridSize, flowGridSize, flowGridDecay);
+
+		if (MotionGate.isStatic(frame) && (previousGray != null || denseFlow.isReady())) {
+			// Nothing moved, so the tracked points stay where they are. Static
+			// scenes measure no flow anyway: points that move less than
+			// acceptTrackedPoint() allows are dropped.
+			frame.setInt(FLOW_THIS_FRAME, 0);
+			frame.setInt(TRACKED_POINTS, pointCount);
+			frame.setInt(NEW_POINTS, 0);
+			frame.setInt(DETECT_CALLS, 0);
+			frame.setDouble(DETECT_NANOS, 0);
+			publishGrid(frame);
+			if (showFlow && debug != null) {
+				frame.getDebugImages().put("flow", debug);
+			}
+			return;
 		}
 
 		if (showFlow) {
 			if (debug == null) {
-				debug = currentGray.clone();
-			} else {
-				opencv_core.cvCopy(currentGray, debug);
+				debug = pool.borrow(this, rects.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
 			}
+			opencv_core.cvCopy(rects, debug);
 		}
 
-		// Detect motion of the features
+		FlowEngine frameEngine = engine;
+		if (frameEngine != lastEngine) {
+			// Whatever the other engine remembered is out of date now
+			startOver();
+			lastEngine = frameEngine;
+		}
+		if (frameEngine == FlowEngine.DENSE) {
+			double flow = denseFlow.update(rects, denseScale, denseMinMotion, denseGain, flowGrid,
+					showFlow ? debug : null);
+			frame.setInt(FLOW_THIS_FRAME, (int) Math.round(flow));
+			frame.setInt(TRACKED_POINTS, denseFlow.getMovingPixels());
+			frame.setInt(NEW_POINTS, 0);
+			frame.setInt(DETECT_CALLS, 0);
+			frame.setDouble(DETECT_NANOS, 0);
+			publishGrid(frame);
+			if (showFlow) {
+				frame.getDebugImages().put("flow", debug);
+			}
+			return;
+		}
 
-		if (trackedPoints.size() < minTrackedPoints) {
-			List<CvPoint2D32f> features = detectFeaturePoints(currentGray);
-			initialPositions.addAll(features);
-			trackedPoints.addAll(features);
+		if (currentGray == null) {
+			currentGray = pool.borrow(this, rects.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
 		}
+		opencv_core.cvCopy(rects, currentGray);
+
+		// Detect motion of the features
+
+		newPointCount = 0;
+		detectCalls = 0;
+		detectNanos = 0;
+		replenish(currentGray);
+		frame.setInt(NEW_POINTS, newPointCount);
+		frame.setInt(DETECT_CALLS, detectCalls);
+		frame.setDouble(DETECT_NANOS, detectNanos);
 
 		if (previousGray == null) {
-			previousGray = currentGray.clone();
+			previousGray = pool.borrow(this, rects.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
 			opencv_core.cvCopy(currentGray, previousGray);
 		}
 
-		CvPoint2D32f trackedPointsNewUnfilteredOCV = new CvPoint2D32f(trackedPoints.size());
-		byte[] trackingStatus = new byte[trackedPoints.size()];
-
-		opencv_video.cvCalcOpticalFlowPyrLK(previousGray, currentGray, null, null, toNativeVector(trackedPoints),
-				trackedPointsNewUnfilteredOCV, trackedPoints.size(), new CvSize(21, 21), 3, trackingStatus,
-				new float[trackedPoints.size()], new CvTermCriteria(opencv_core.CV_TERMCRIT_ITER
-						+ opencv_core.CV_TERMCRIT_EPS, 30, 0.01), 0);
-
-		// Reject points that did not move or did not move enough
+		if (pointCount > 0) {
+			if (previousPoints.getCapacity() < pointCount) {
+				int capacity = Math.max(pointCount, previousPoints.getCapacity() * 2);
+				previousPoints = new NativePoints(capacity);
+				currentPoints = new NativePoints(capacity);
+			}
+			if (trackingStatus.length < pointCount) {
+				movedPoints = new float[trackedPoints.length];
+				trackingStatus = new byte[pointCount];
+				trackingError = new float[pointCount];
+			}
 
-		List<CvPoint2D32f> trackedPointsNewUnfiltered = toList(trackedPointsNewUnfilteredOCV, Integer.MAX_VALUE);
-		List<CvPoint2D32f> initialPositionsNew = new ArrayList<>();
-		List<CvPoint2D32f> trackedPointsNew = new ArrayList<>();
-		for (int i = 0; i < trackedPointsNewUnfiltered.size(); i++) {
-			if (acceptTrackedPoint(trackingStatus[i], trackedPoints.get(i), trackedPointsNewUnfiltered.get(i))) {
-				initialPositionsNew.add(initialPositions.get(i));
-				trackedPointsNew.add(trackedPointsNewUnfiltered.get(i));
+			previousPoints.put(trackedPoints, pointCount);
+			window.width(windowSize).height(windowSize);
+			termCriteria.type(opencv_core.CV_TERMCRIT_ITER + opencv_core.CV_TERMCRIT_EPS).max_iter(maxIterations)
+					.epsilon(epsilon);
+			// OpenCV 2.4 builds both pyramids every call: it ignores pyramid
+			// buffers and CV_LKFLOW_PYR_A_READY
+			opencv_video.cvCalcOpticalFlowPyrLK(previousGray, currentGray, null, null, previousPoints.getPoints(),
+					currentPoints.getPoints(), pointCount, window, pyramidLevels, trackingStatus, trackingError,
+					termCriteria, 0);
+			currentPoints.get(movedPoints, 0, pointCount);
+
+			// Reject points that did not move or did not move enough
+
+			int kept = 0;
+			for (int i = 0; i < pointCount; i++) {
+				if (acceptTrackedPoint(trackingStatus[i], i)) {
+					initialPositions[kept * 2] = initialPositions[i * 2];
+					initialPositions[kept * 2 + 1] = initialPositions[i * 2 + 1];
+					trackedPoints[kept * 2] = movedPoints[i * 2];
+					trackedPoints[kept * 2 + 1] = movedPoints[i * 2 + 1];
+					kept++;
+				}
 			}
+			pointCount = kept;
 		}
+		frame.setInt(TRACKED_POINTS, pointCount);
 
 		// Add up all the motion into a scalar value
 
-		computeOverallFlow(initialPositionsNew, trackedPointsNew, frame);
+		computeOverallFlow(frame);
+		publishGrid(frame);
 
 		// Draw vectors for the motion
 
 		if (showFlow) {
-			visualizeTrackedPoints(initialPositionsNew, trackedPointsNew, debug);
+			visualizeTrackedPoints(debug);
 			frame.getDebugImages().put("flow", debug);
 		}
 
-		// Update the fields for next frame
+		// This frame becomes the previous one, and the old previous image is
+		// overwritten next frame
 
-		trackedPoints = trackedPointsNew;
-		initialPositions = initialPositionsNew;
-		opencv_core.cvCopy(currentGray, previousGray);
+		IplImage swap = previousGray;
+		previousGray = currentGray;
+		currentGray = swap;
 	}
 
-	private void computeOverallFlow(List<CvPoint2D32f> startPoints, List<CvPoint2D32f> endPoints, Frame frame) {
-		int flow = 0;
+	/**
+	 * Drops the tracked points and the previous images of both engines.
+	 */
+	private void startOver() {
+		pointCount = 0;
+		cellsToVisit = 0;
+		replenishRound = -1;
+		if (previousGray != null) {
+			pool.release(this, previousGray);
+			previousGray = null;
+		}
+		denseFlow.reset();
+	}
 
-		if (startPoints.size() >= 0) {
-			for (int i = 0; i < startPoints.size(); i++) {
-				CvPoint startPoint = opencv_core.cvPointFrom32f(startPoints.get(i));
-				CvPoint endPoint = opencv_core.cvPointFrom32f(endPoints.get(i));
+	/**
+	 * Adds up how far each tracked point is from where it was found, in every
+	 * direction, into the frame's flow and the grid cell the point is in now.
+	 */
+	private void computeOverallFlow(Frame frame) {
+		int flow = 0;
 
-				int deltaX = endPoint.x() - startPoint.x();
-				int deltaY = endPoint.y() - startPoint.y();
+		for (int i = 0; i < pointCount; i++) {
+			int deltaX = round(trackedPoints[i * 2]) - round(initialPositions[i * 2]);
+			int deltaY = round(trackedPoints[i * 2 + 1]) - round(initialPositions[i * 2 + 1]);
 
-				if (deltaX > 0 || deltaY > 0) {
-					flow += Math.round(Math.abs(Math.sqrt(deltaX * deltaX + deltaY * deltaY)));
-				}
+			if (deltaX != 0 || deltaY != 0) {
+				long distance = Math.round(Math.sqrt(deltaX * deltaX + deltaY * deltaY));
+				flow += distance;
+				flowGrid.add(trackedPoints[i * 2], trackedPoints[i * 2 + 1], distance);
 			}
 		}
 
-		frame.getArtifacts().put(ARTIFACT_FLOW_THIS_FRAME, flow);
+		frame.setInt(FLOW_THIS_FRAME, flow);
 	}
 
-	private void visualizeTrackedPoints(List<CvPoint2D32f> startPoints, List<CvPoint2D32f> endPoints, IplImage debug) {
-		if (startPoints.size() == 0) {
-			return;
+	/**
+	 * Copies the grid into the frame's own, so later stages see this frame's
+	 * grid even once the next frame is being processed.
+	 */
+	private void publishGrid(Frame frame) {
+		FlowGrid published = frame.get(FLOW_GRID);
+		if (published == null) {
+			published = new FlowGrid();
+			frame.set(FLOW_GRID, published);
 		}
+		published.copyFrom(flowGrid);
+	}
 
-		for (int i = 0; i < startPoints.size(); i++) {
-			CvPoint startPoint = opencv_core.cvPointFrom32f(startPoints.get(i));
-			CvPoint endPoint = opencv_core.cvPointFrom32f(endPoints.get(i));
+	private void visualizeTrackedPoints(IplImage debug) {
+		for (int i = 0; i < pointCount; i++) {
+			startPoint.x(round(initialPositions[i * 2])).y(round(initialPositions[i * 2 + 1]));
+			endPoint.x(round(trackedPoints[i * 2])).y(round(trackedPoints[i * 2 + 1]));
 			opencv_core.cvLine(debug, startPoint, endPoint, CvScalar.WHITE, 1, opencv_core.CV_AA, 0);
 			opencv_core.cvCircle(debug, startPoint, 3, CvScalar.WHITE, -1, opencv_core.CV_AA, 0);
 		}
 	}
 
-	private boolean acceptTrackedPoint(byte status, CvPoint2D32f point0, CvPoint2D32f point1) {
-		return status != 0 && (Math.abs(point0.x() - point1.x()) + (Math.abs(point0.y() - point1.y())) > 2);
+	/**
+	 * @param i
+	 *            index of the point in {@link #trackedPoints}, and where it
+	 *            moved to in {@link #movedPoints}
+	 */
+	private boolean acceptTrackedPoint(byte status, int i) {
+		return status != 0
+				&& (Math.abs(trackedPoints[i * 2] - movedPoints[i * 2])
+						+ (Math.abs(trackedPoints[i * 2 + 1] - movedPoints[i * 2 + 1])) > 2);
 	}
 
-	private CvPoint2D32f toNativeVector(List<CvPoint2D32f> points) {
-		CvPoint2D32f dest = new CvPoint2D32f(points.size());
-		for (int i = 0; i < points.size(); i++) {
-			dest.position(i).x(points.get(i).x());
-			dest.position(i).y(points.get(i).y());
+	/**
+	 * Once the tracked points drop below the minimum, visits every grid cell
+	 * over the next few frames, finding new points in the ones that have
+	 * fewer than their share of {@link #MAX_NEW_FEATURES}, and adds them to
+	 * the end of the tracked points. New points are kept at least the
+	 * minimum distance from the ones already tracked. Cells where the flow
+	 * grid has been quiet are only searched every few rounds, since points
+	 * that don't move are dropped again straight away.
+	 */
+	private void replenish(IplImage grayFrame) {
+		int cells = gridSize * gridSize;
+		if (cellCounts.length != cells) {
+			cellCounts = new int[cells];
+			nextCell = 0;
+			cellsToVisit = 0;
 		}
-		dest.position(0);
-		return dest;
-	}
 
-	private CvPoint2D32f featurePoints = new CvPoint2D32f(MAX_NEW_FEATURES);
-	private int[] featureCount = new int[] { MAX_NEW_FEATURES };
+		if (cellsToVisit == 0 && pointCount < minTrackedPoints) {
+			cellsToVisit = cells;
+			replenishRound++;
+		}
+		if (cellsToVisit == 0) {
+			return;
+		}
 
-	private List<CvPoint2D32f> detectFeaturePoints(IplImage grayFrame) {
-		featureCount[0] = MAX_NEW_FEATURES;
+		if (mask == null) {
+			mask = pool.borrow(this, grayFrame.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+		}
+		int columns = gridSize;
+		int cellWidth = (grayFrame.width() + columns - 1) / columns;
+		int cellHeight = (grayFrame.height() + columns - 1) / columns;
 
-		opencv_imgproc.cvGoodFeaturesToTrack(grayFrame, null, null, featurePoints, featureCount, qLevel, minDist, null,
-				3, 0, 0.04);
+		for (int i = 0; i < cells; i++) {
+			cellCounts[i] = 0;
+		}
+		for (int i = 0; i < pointCount; i++) {
+			cellCounts[cellOf(i, cellWidth, cellHeight, columns)]++;
+		}
+
+		int share = (MAX_NEW_FEATURES + cells - 1) / cells;
+		boolean searchQuiet = replenishRound % quietSearchRounds == 0;
+		int searched = 0;
+		while (cellsToVisit > 0 && searched < cellsPerFrame) {
+			int c = nextCell;
+			nextCell = (nextCell + 1) % cells;
+			cellsToVisit--;
+			if (cellCounts[c] >= share) {
+				continue;
+			}
 
-		return toList(featurePoints, featureCount[0]);
+			int x = (c % columns) * cellWidth;
+			int y = (c / columns) * cellHeight;
+			cell.x(x).y(y).width(Math.min(cellWidth, grayFrame.width() - x))
+					.height(Math.min(cellHeight, grayFrame.height() - y));
+			if (cell.width() <= 0 || cell.height() <= 0) {
+				continue;
+			}
+			if (!searchQuiet && flowGrid.isQuiet(x, y, cell.width(), cell.height(), quietFlow)) {
+				continue;
+			}
+			detectFeaturePoints(grayFrame, share - cellCounts[c]);
+			searched++;
+		}
 	}
 
-	private List<CvPoint2D32f> toList(CvPoint2D32f points, int max) {
-		int oldPosition = points.position();
-		int count = Math.min(points.capacity(), max);
+	/**
+	 * Finds up to the given number of points in {@link #cell}, away from the
+	 * points already tracked, and adds them to the end of the tracked points.
+	 */
+	private void detectFeaturePoints(IplImage grayFrame, int max) {
+		// Mask out a circle round every tracked point near the cell.
+		// Coordinates are relative to the region of interest.
+		opencv_core.cvSetImageROI(mask, cell);
+		opencv_core.cvSet(mask, CvScalar.WHITE, null);
+		int radius = (int) Math.ceil(minDist);
+		for (int i = 0; i < pointCount; i++) {
+			int x = round(trackedPoints[i * 2]) - cell.x();
+			int y = round(trackedPoints[i * 2 + 1]) - cell.y();
+			if (x >= -radius && y >= -radius && x < cell.width() + radius && y < cell.height() + radius) {
+				opencv_core.cvCircle(mask, maskPoint.x(x).y(y), radius, CvScalar.BLACK, -1, 8, 0);
+			}
+		}
+
+		FeatureDetector detector;
+		if (featureDetectorType == FeatureDetectorType.FAST) {
+			fast.setThreshold(fastThreshold);
+			detector = fast;
+		} else {
+			shiTomasi.setQualityLevel(qLevel);
+			detector = shiTomasi;
+		}
+
+		int found;
+		opencv_core.cvSetImageROI(grayFrame, cell);
+		long start = System.nanoTime();
+		try {
+			found = detector.detect(grayFrame, mask, cell, max, minDist, newPoints);
+		} finally {
+			detectNanos += System.nanoTime() - start;
+			detectCalls++;
+			opencv_core.cvResetImageROI(grayFrame);
+			opencv_core.cvResetImageROI(mask);
+		}
 
-		List<CvPoint2D32f> ret = new ArrayList<>();
-		for (int i = 0; i < count; i++) {
-			CvPoint2D32f copy = new CvPoint2D32f(1);
-			copy.x(points.position(i).x());
-			copy.y(points.position(i).y());
-			ret.add(copy);
+		if (trackedPoints.length < (pointCount + found) * 2) {
+			int capacity = Math.max((pointCount + found) * 2, trackedPoints.length * 2);
+			initialPositions = Arrays.copyOf(initialPositions, capacity);
+			trackedPoints = Arrays.copyOf(trackedPoints, capacity);
+		}
+		for (int i = 0; i < found; i++) {
+			trackedPoints[(pointCount + i) * 2] = newPoints[i * 2] + cell.x();
+			trackedPoints[(pointCount + i) * 2 + 1] = newPoints[i * 2 + 1] + cell.y();
 		}
+		System.arraycopy(trackedPoints, pointCount * 2, initialPositions, pointCount * 2, found * 2);
+		pointCount += found;
+		newPointCount += found;
+	}
 
-		points.position(oldPosition);
-		return ret;
+	private int cellOf(int point, int cellWidth, int cellHeight, int columns) {
+		int column = Math.max(0, Math.min(columns - 1, (int) trackedPoints[point * 2] / cellWidth));
+		int row = Math.max(0, Math.min(columns - 1, (int) trackedPoints[point * 2 + 1] / cellHeight));
+		return row * columns + column;
+	}
+
+	/**
+	 * Same rounding as <code>cvPointFrom32f</code>.
+	 */
+	private static int round(float value) {
+		return (int) Math.rint(value);
 	}
 }
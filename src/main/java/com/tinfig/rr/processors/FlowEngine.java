@@ -0,0 +1,18 @@
+package com.tinfig.rr.processors;
+
+/**
+ * How {@link FlowDetector} measures motion.
+ */
+public enum FlowEngine {
+	/**
+	 * Lucas-Kanade on tracked points; cost depends on how many points there
+	 * are and when new ones are found.
+	 */
+	SPARSE,
+
+	/**
+	 * Farneback dense flow on a shrunken copy of the frame; the same cost
+	 * every frame.
+	 */
+	DENSE
+}
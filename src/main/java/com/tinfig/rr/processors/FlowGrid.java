@@ -0,0 +1,157 @@
+package com.tinfig.rr.processors;
+
+import java.util.Arrays;
+
+/**
+ * How much flow {@link FlowDetector} measured in each cell of a grid laid over
+ * the frame: this frame's flow, and a running total that decays a little
+ * every frame so cells that have been quiet for a while fall back towards 0.
+ * <p>
+ * This frame's cells add up to {@link FlowDetector#FLOW_THIS_FRAME}. Each
+ * frame carries its own grid, which {@link FlowDetector} overwrites rather
+ * than reallocates. Not thread-safe.
+ */
+public final class FlowGrid {
+	private int columns;
+	private int rows;
+	private int width;
+	private int height;
+	private int cellWidth = 1;
+	private int cellHeight = 1;
+
+	private double[] frameFlow = new double[0];
+	private double[] decayedFlow = new double[0];
+
+	/**
+	 * Starts a new frame: this frame's flow is cleared and the running totals
+	 * decay. Changing the shape clears everything.
+	 *
+	 * @param width
+	 *            of the image the flow is measured in
+	 * @param decay
+	 *            how much of the running totals is kept, from 0 to 1
+	 */
+	void begin(int width, int height, int columns, int rows, double decay) {
+		if (width != this.width || height != this.height || columns != this.columns || rows != this.rows) {
+			resize(width, height, columns, rows);
+			Arrays.fill(decayedFlow, 0);
+		} else {
+			for (int i = 0; i < decayedFlow.length; i++) {
+				decayedFlow[i] *= decay;
+			}
+		}
+		Arrays.fill(frameFlow, 0);
+	}
+
+	/**
+	 * Adds flow measured at a point of the image.
+	 */
+	void add(float x, float y, double flow) {
+		int cell = cellAt(x, y);
+		frameFlow[cell] += flow;
+		decayedFlow[cell] += flow;
+	}
+
+	/**
+	 * Makes this grid the same as the other one, without allocating unless
+	 * the shape changed.
+	 */
+	void copyFrom(FlowGrid other) {
+		if (other.width != width || other.height != height || other.columns != columns || other.rows != rows) {
+			resize(other.width, other.height, other.columns, other.rows);
+		}
+		System.arraycopy(other.frameFlow, 0, frameFlow, 0, frameFlow.length);
+		System.arraycopy(other.decayedFlow, 0, decayedFlow, 0, decayedFlow.length);
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCellCount() {
+		return frameFlow.length;
+	}
+
+	/**
+	 * @return the cell a point of the image falls in, clamped to the grid
+	 */
+	public int cellAt(float x, float y) {
+		int column = Math.max(0, Math.min(columns - 1, (int) x / cellWidth));
+		int row = Math.max(0, Math.min(rows - 1, (int) y / cellHeight));
+		return row * columns + column;
+	}
+
+	/**
+	 * @return the flow measured in the cell this frame
+	 */
+	public double getFrameFlow(int cell) {
+		return frameFlow[cell];
+	}
+
+	/**
+	 * @return the running total of the flow measured in the cell
+	 */
+	public double getDecayedFlow(int cell) {
+		return decayedFlow[cell];
+	}
+
+	/**
+	 * @return <code>true</code> if every cell touching the area has a running
+	 *         total below the level; <code>false</code> before the first frame
+	 */
+	public boolean isQuiet(int x, int y, int width, int height, double level) {
+		if (frameFlow.length == 0) {
+			return false;
+		}
+
+		int first = cellAt(x, y);
+		int last = cellAt(x + width - 1, y + height - 1);
+		for (int row = first / columns; row <= last / columns; row++) {
+			for (int column = first % columns; column <= last % columns; column++) {
+				if (decayedFlow[row * columns + column] >= level) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the left edge of the cell, in image pixels
+	 */
+	public int getCellX(int cell) {
+		return (cell % columns) * cellWidth;
+	}
+
+	/**
+	 * @return the top edge of the cell, in image pixels
+	 */
+	public int getCellY(int cell) {
+		return (cell / columns) * cellHeight;
+	}
+
+	public int getCellWidth() {
+		return cellWidth;
+	}
+
+	public int getCellHeight() {
+		return cellHeight;
+	}
+
+	private void resize(int width, int height, int columns, int rows) {
+		this.width = width;
+		this.height = height;
+		this.columns = columns;
+		this.rows = rows;
+		cellWidth = Math.max(1, (width + columns - 1) / columns);
+		cellHeight = Math.max(1, (height + rows - 1) / rows);
+		if (frameFlow.length != columns * rows) {
+			frameFlow = new double[columns * rows];
+			decayedFlow = new double[columns * rows];
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package com.tinfig.rr.processors;
+
+import com.tinfig.rr.processors.FlowTracker.FlowSize;
+
+/**
+ * Told by a {@link FlowTracker} when a camera's activity changes size, and
+ * when it peaks again without changing size. Called on the camera's pipeline
+ * thread, so implementations should hand the work off rather than doing it
+ * there.
+ */
+public interface FlowListener {
+	/**
+	 * @param region
+	 *            the {@link FlowGrid} cell the activity is in when triggering
+	 *            per region, or -1 for the whole frame
+	 * @param captureNanos
+	 *            the {@link System#nanoTime()} when the frame showing the
+	 *            change was captured
+	 */
+	void flowChanged(int deviceIndex, FlowSize from, FlowSize to, int region, long captureNanos);
+
+	/**
+	 * The activity rose past its size's trigger again after easing off, but
+	 * not far enough to become bigger (and not far enough below to get
+	 * smaller in between).
+	 *
+	 * @param region
+	 *            the {@link FlowGrid} cell that peaked when triggering per
+	 *            region, or -1 for the whole frame
+	 * @param captureNanos
+	 *            the {@link System#nanoTime()} when the frame showing the peak
+	 *            was captured
+	 */
+	void flowPeaked(int deviceIndex, FlowSize size, int region, long captureNanos);
+}
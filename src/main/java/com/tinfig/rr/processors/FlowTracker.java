@@ -3,24 +3,61 @@ package com.tinfig.rr.processors;
 import java.awt.Container;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JCheckBox;
 import javax.swing.JSlider;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import com.tinfig.rr.ArtifactKey;
 import com.tinfig.rr.Frame;
 import com.tinfig.rr.Processor;
-import com.tinfig.rr.Sampler;
 import com.tinfig.rr.Settings;
 
+/**
+ * Decides how big the activity a camera sees is, from how far the flow rose
+ * over the short term compared with the long term, and tells its
+ * {@link FlowListener}s when that changes.
+ * <p>
+ * Sizes are sticky so activity hovering around a trigger doesn't flicker
+ * between sizes: once reached, a size is kept until the rise falls a
+ * hysteresis band below its trigger, and for at least a minimum dwell time.
+ * Each size cools down after it's reached before it can be reached again,
+ * and rising past the current size's trigger again after easing off is
+ * reported as a peak, no more often than the cooldown allows. Nothing is
+ * reported while the size stays the same.
+ */
 public class FlowTracker extends Processor {
 	public static enum FlowSize {
 		// Order from smallest to largest
 		NONE, SMALL, MEDIUM, LARGE
 	}
 
+	/**
+	 * Integer, the {@link FlowGrid} cell whose flow rose the most when
+	 * triggering per region, or -1 if nothing triggered. Also passed to the
+	 * {@link FlowListener}s
+	 */
+	public static final String ARTIFACT_REGION = "flowTracker.region";
+	public static final ArtifactKey<Integer> REGION = ArtifactKey.registerInt(ARTIFACT_REGION);
+
 	private static final String TRIGGER_SLOPE = "flowTracker.triggerSlope";
+	private static final String MEDIUM_TRIGGER_SLOPE = "flowTracker.mediumTriggerSlope";
+	private static final String LARGE_TRIGGER_SLOPE = "flowTracker.largeTriggerSlope";
+	private static final String PER_REGION = "flowTracker.perRegion";
+	private static final String REGION_FLOOR = "flowTracker.relativeRegionFloor";
+	private static final String HYSTERESIS = "flowTracker.hysteresis";
+	private static final String MIN_DWELL_MILLIS = "flowTracker.minDwellMillis";
+	private static final String SMALL_COOLDOWN_MILLIS = "flowTracker.smallCooldownMillis";
+	private static final String MEDIUM_COOLDOWN_MILLIS = "flowTracker.mediumCooldownMillis";
+	private static final String LARGE_COOLDOWN_MILLIS = "flowTracker.largeCooldownMillis";
+
+	private static final FlowSize[] SIZES = FlowSize.values();
+	private static final long NEVER = Long.MIN_VALUE;
 
 	private static final int LONG_SAMPLES = 100;
 	private double longAverage = 0;
@@ -28,37 +65,103 @@ public class FlowTracker extends Processor {
 	private static final int SHORT_SAMPLES = 5;
 	private double shortAverage = 0;
 
+	// The same averages for each cell of the flow grid
+	private double[] longAverages = new double[0];
+	private double[] shortAverages = new double[0];
+
 	private final int deviceIndex;
-	private final Sampler sampler;
+	private final List<FlowListener> listeners = new ArrayList<>();
 	private double smallTriggerSlope = 2;
 	private double mediumTriggerSlope = 3;
 	private double largeTriggerSlope = 4;
 
 	private long samples;
 
-	private boolean enabled = true;
+	// A size is left once the rise falls hysteresis (a fraction of its
+	// trigger) below the trigger, and no sooner than minDwellMillis after
+	// it was reached
+	private double hysteresis = 0.25;
+	private int minDwellMillis = 200;
+	// Indexed by FlowSize ordinal; NONE has no cooldown
+	private final int[] cooldownMillis = { 0, 300, 600, 1000 };
+
+	private FlowSize size = FlowSize.NONE;
+	// Capture time the current size was reached
+	private long sizeSince;
+	// Capture time each size was last reached or peaked, or NEVER
+	private final long[] triggeredAt = new long[SIZES.length];
+	// Whether the rise has fallen below the current size's trigger since it
+	// was last reached or peaked, so rising past it again is a new peak
+	private boolean armed;
+
+	private volatile boolean enabled = true;
+	// Set by the "Track flow" checkbox; the averages are only touched on the
+	// pipeline thread, which clears them when it next processes a frame
+	private volatile boolean resetRequested;
+
+	// Trigger on whichever flow grid cell rose the most, rather than on the
+	// whole frame, so a small event isn't lost in the rest of the table.
+	// Quiet cells' long averages are treated as at least regionFloor times
+	// the average cell's, so noise in an empty cell doesn't count as a rise.
+	// Being relative, it works the same whatever units the flow engine
+	// measures in.
+	private boolean perRegion = false;
+	private double regionFloor = 1;
+	// regionFloor in flow units, for the last frame
+	private double cellFloor;
 
-	public FlowTracker(int deviceIndex, Sampler sampler) {
+	public FlowTracker(int deviceIndex) {
 		this.deviceIndex = deviceIndex;
-		this.sampler = sampler;
+		for (int i = 0; i < triggeredAt.length; i++) {
+			triggeredAt[i] = NEVER;
+		}
+	}
+
+	/**
+	 * Adds a listener. Call before the pipeline starts.
+	 */
+	public void addListener(FlowListener listener) {
+		listeners.add(listener);
 	}
 
 	@Override
 	public void start(Frame frame, Settings settings) {
 		smallTriggerSlope = settings.getDouble(TRIGGER_SLOPE, smallTriggerSlope);
+		mediumTriggerSlope = settings.getDouble(MEDIUM_TRIGGER_SLOPE, mediumTriggerSlope);
+		largeTriggerSlope = settings.getDouble(LARGE_TRIGGER_SLOPE, largeTriggerSlope);
+		perRegion = settings.getBoolean(PER_REGION, perRegion);
+		regionFloor = settings.getDouble(REGION_FLOOR, regionFloor);
+		hysteresis = settings.getDouble(HYSTERESIS, hysteresis);
+		minDwellMillis = settings.getInteger(MIN_DWELL_MILLIS, minDwellMillis);
+		cooldownMillis[FlowSize.SMALL.ordinal()] = settings.getInteger(SMALL_COOLDOWN_MILLIS,
+				cooldownMillis[FlowSize.SMALL.ordinal()]);
+		cooldownMillis[FlowSize.MEDIUM.ordinal()] = settings.getInteger(MEDIUM_COOLDOWN_MILLIS,
+				cooldownMillis[FlowSize.MEDIUM.ordinal()]);
+		cooldownMillis[FlowSize.LARGE.ordinal()] = settings.getInteger(LARGE_COOLDOWN_MILLIS,
+				cooldownMillis[FlowSize.LARGE.ordinal()]);
 
 		Container container = frame.getArtifact(ControlsProcessor.ARTIFACT_CONTROL_CONTAINER, Container.class);
+		if (container != null) {
+			createControls(container);
+		}
+	}
+
+	private void createControls(Container container) {
 		createCheckBox(container, "Track flow", enabled, new ItemListener() {
 			@Override
 			public void itemStateChanged(ItemEvent e) {
 				enabled = ((JCheckBox) e.getSource()).isSelected();
 				if (enabled == false) {
-					samples = 0;
-					longAverage = 0;
-					shortAverage = 0;
+					resetRequested = true;
 				}
 			}
 		});
+		createCheckBox(container, "Trigger per region", perRegion, new ItemListener() {
+			@Override
+			public void itemStateChanged(ItemEvent e) {
+				perRegion = ((JCheckBox) e.getSource()).isSelected();
+			}
+		});
 		createSlider(container, "Small effect flow trigger", 1, 100, (int) (smallTriggerSlope * 10),
 				new ChangeListener() {
 					@Override
@@ -80,23 +183,59 @@ public class FlowTracker extends Processor {
 						largeTriggerSlope = ((JSlider) e.getSource()).getValue() / 10.0;
 					}
 				});
+		createSlider(container, "Flow trigger hysteresis (%)", 0, 90, (int) (hysteresis * 100), new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				hysteresis = ((JSlider) e.getSource()).getValue() / 100.0;
+			}
+		});
+		createSlider(container, "Min flow dwell (ms)", 0, 2000, minDwellMillis, new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				minDwellMillis = ((JSlider) e.getSource()).getValue();
+			}
+		});
 	}
 
 	@Override
 	public void stop(Settings settings) {
 		settings.set(TRIGGER_SLOPE, smallTriggerSlope);
+		settings.set(MEDIUM_TRIGGER_SLOPE, mediumTriggerSlope);
+		settings.set(LARGE_TRIGGER_SLOPE, largeTriggerSlope);
+		settings.set(PER_REGION, perRegion);
+		settings.set(REGION_FLOOR, regionFloor);
+		settings.set(HYSTERESIS, hysteresis);
+		settings.set(MIN_DWELL_MILLIS, minDwellMillis);
+		settings.set(SMALL_COOLDOWN_MILLIS, cooldownMillis[FlowSize.SMALL.ordinal()]);
+		settings.set(MEDIUM_COOLDOWN_MILLIS, cooldownMillis[FlowSize.MEDIUM.ordinal()]);
+		settings.set(LARGE_COOLDOWN_MILLIS, cooldownMillis[FlowSize.LARGE.ordinal()]);
 	}
 
 	@Override
 	public void process(Frame frame) {
+		if (resetRequested) {
+			resetRequested = false;
+			samples = 0;
+			longAverage = 0;
+			shortAverage = 0;
+			Arrays.fill(longAverages, 0);
+			Arrays.fill(shortAverages, 0);
+		}
+		frame.setInt(REGION, -1);
 		if (!enabled) {
+			// Don't leave listeners thinking the last activity is still going
+			if (size != FlowSize.NONE) {
+				changeSize(FlowSize.NONE, -1, frame.getTimestamp(), false);
+			}
 			return;
 		}
 
-		int flow = frame.getArtifact(FlowDetector.ARTIFACT_FLOW_THIS_FRAME, Integer.class);
+		int flow = frame.getInt(FlowDetector.FLOW_THIS_FRAME);
 
 		longAverage = updateMovingAverage(longAverage, LONG_SAMPLES, flow);
 		shortAverage = updateMovingAverage(shortAverage, SHORT_SAMPLES, flow);
+		FlowGrid grid = frame.get(FlowDetector.FLOW_GRID);
+		int region = grid != null ? updateRegions(grid) : -1;
 		samples++;
 
 		// Can't trigger sounds if we don't have a noise floor (longFlow)
@@ -106,18 +245,122 @@ public class FlowTracker extends Processor {
 		}
 
 		// Calculate the rise in the short term vs. the long term
-		double rise = shortAverage / longAverage;
-
-		// Signal any events
-		if (rise > largeTriggerSlope) {
-			sampler.setDeviceActivity(deviceIndex, FlowSize.LARGE);
-		} else if (rise > mediumTriggerSlope) {
-			sampler.setDeviceActivity(deviceIndex, FlowSize.MEDIUM);
-		} else if (rise > smallTriggerSlope) {
-			sampler.setDeviceActivity(deviceIndex, FlowSize.SMALL);
+		double rise;
+		if (perRegion && region >= 0) {
+			rise = shortAverages[region] / Math.max(longAverages[region], cellFloor);
 		} else {
-			sampler.setDeviceActivity(deviceIndex, FlowSize.NONE);
+			rise = shortAverage / longAverage;
+		}
+
+		FlowSize target = FlowSize.NONE;
+		for (int i = 1; i < SIZES.length; i++) {
+			// Sizes up to the current one only have to be held, bigger ones
+			// have to be reached
+			double threshold = i <= size.ordinal() ? trigger(SIZES[i]) * (1 - hysteresis) : trigger(SIZES[i]);
+			if (rise > threshold) {
+				target = SIZES[i];
+			}
+		}
+		int triggerRegion = perRegion && target != FlowSize.NONE ? region : -1;
+		frame.setInt(REGION, triggerRegion);
+
+		long now = frame.getTimestamp();
+		if (target.ordinal() > size.ordinal()) {
+			// Settle for the biggest size that isn't cooling down
+			while (target.ordinal() > size.ordinal() && isCoolingDown(target, now)) {
+				target = SIZES[target.ordinal() - 1];
+			}
+			if (target != size) {
+				changeSize(target, triggerRegion, now, true);
+			}
+		} else if (target.ordinal() < size.ordinal()) {
+			if (now - sizeSince >= TimeUnit.MILLISECONDS.toNanos(minDwellMillis)) {
+				changeSize(target, triggerRegion, now, false);
+			}
+		} else if (size != FlowSize.NONE) {
+			if (rise <= trigger(size)) {
+				armed = true;
+			} else if (armed && !isCoolingDown(size, now)) {
+				armed = false;
+				triggeredAt[size.ordinal()] = now;
+				for (int i = 0; i < listeners.size(); i++) {
+					listeners.get(i).flowPeaked(deviceIndex, size, triggerRegion, now);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param region
+	 *            the cell triggered on, or -1
+	 * @param reached
+	 *            <code>true</code> if the activity grew to the size, which
+	 *            starts its cooldown
+	 */
+	private void changeSize(FlowSize to, int region, long now, boolean reached) {
+		FlowSize from = size;
+		size = to;
+		sizeSince = now;
+		armed = false;
+		if (reached) {
+			triggeredAt[to.ordinal()] = now;
+		}
+		for (int i = 0; i < listeners.size(); i++) {
+			listeners.get(i).flowChanged(deviceIndex, from, to, region, now);
+		}
+	}
+
+	private boolean isCoolingDown(FlowSize size, long now) {
+		long at = triggeredAt[size.ordinal()];
+		return at != NEVER && now - at < TimeUnit.MILLISECONDS.toNanos(cooldownMillis[size.ordinal()]);
+	}
+
+	private double trigger(FlowSize size) {
+		switch (size) {
+		case LARGE:
+			return largeTriggerSlope;
+		case MEDIUM:
+			return mediumTriggerSlope;
+		case SMALL:
+			return smallTriggerSlope;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Updates the averages of every cell with this frame's flow. The averages
+	 * start over if the grid changed shape.
+	 *
+	 * @return the cell whose short term flow rose the most over its long term
+	 *         flow
+	 */
+	private int updateRegions(FlowGrid grid) {
+		int cells = grid.getCellCount();
+		if (longAverages.length != cells) {
+			longAverages = new double[cells];
+			shortAverages = new double[cells];
+		}
+
+		double longTotal = 0;
+		for (int i = 0; i < cells; i++) {
+			double flow = grid.getFrameFlow(i);
+			longAverages[i] = updateMovingAverage(longAverages[i], LONG_SAMPLES, flow);
+			shortAverages[i] = updateMovingAverage(shortAverages[i], SHORT_SAMPLES, flow);
+			longTotal += longAverages[i];
+		}
+		cellFloor = cells == 0 ? 0 : regionFloor * longTotal / cells;
+
+		int region = -1;
+		double maxRise = -1;
+		for (int i = 0; i < cells; i++) {
+			double rise = shortAverages[i] / Math.max(longAverages[i], cellFloor);
+			if (rise > maxRise) {
+				maxRise = rise;
+				region = i;
+			}
 		}
+		return region;
 	}
 
 	/**
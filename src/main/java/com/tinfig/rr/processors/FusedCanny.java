@@ -0,0 +1,276 @@
+package com.tinfig.rr.processors;
+
+import java.nio.ByteBuffer;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.tinfig.rr.Check;
+
+/**
+ * Canny edge detection across the channels of an 8-bit BGR image in a single
+ * pass, instead of splitting the channels, running Canny on each, and ORing
+ * the results.
+ * <p>
+ * At each pixel the gradient of whichever enabled channel changes most is
+ * used, then non-maximum suppression and hysteresis run once on that. It
+ * follows the same approximations as <code>cvCanny</code> with a 3x3 Sobel
+ * aperture and the L1 norm, so thresholds mean the same thing; edges found
+ * in two channels at once come out as one edge rather than two side by side.
+ * <p>
+ * Works in a region the caller passes in, which the images' regions of
+ * interest should match. Source rows are read from native memory once each,
+ * into a three-row window, as the gradient reaches them. The edge map and
+ * the stack used to follow edges still cover the whole region, the stack
+ * with an int per pixel. Buffers are kept between calls and only reallocated
+ * when the size changes. Not thread-safe.
+ */
+class FusedCanny {
+	// tan(22.5 degrees) in 17.15 fixed point
+	private static final int TG22 = (int) (0.4142135623730950488016887242097 * (1 << 15) + 0.5);
+
+	private static final byte NONE = 0;
+	private static final byte WEAK = 1;
+	private static final byte STRONG = 2;
+
+	private int width;
+	private int height;
+	private int sourceStep;
+	private int sourceOrigin;
+	private int mapStep;
+
+	private ByteBuffer sourceBuffer;
+	// Three source rows (BGR, no padding), by row % 3
+	private byte[] pixels;
+	private int rowsRead;
+	private byte[] edges;
+
+	// Gradient magnitude for three rows, with a zero column at each end
+	private int[] magnitude;
+	// Gradient of the strongest channel for the same three rows
+	private int[] dx;
+	private int[] dy;
+
+	// Edge state of every pixel, with a border of NONE all round
+	private byte[] map;
+	private int[] stack;
+	private int[] neighbours;
+
+	/**
+	 * @param source
+	 *            8-bit, 3 channel image, usually already blurred
+	 * @param useChannels
+	 *            which channels (in BGR order) to find edges in
+	 * @param target
+	 *            8-bit, 1 channel image the same size as the source; edges are
+	 *            255, everything else 0
+	 * @param region
+	 *            the part of both images to work in, so their regions of
+	 *            interest don't have to be read back
+	 */
+	public void detect(IplImage source, boolean[] useChannels, double lowThreshold, double highThreshold,
+			IplImage target, CvRect region) {
+		Check.isTrue(source.depth() == opencv_core.IPL_DEPTH_8U && source.nChannels() == 3,
+				"Source must be an 8-bit, 3 channel image");
+		Check.isTrue(target.depth() == opencv_core.IPL_DEPTH_8U && target.nChannels() == 1,
+				"Target must be an 8-bit, 1 channel image");
+		Check.isTrue(region.x() >= 0 && region.y() >= 0 && region.x() + region.width() <= source.width()
+				&& region.y() + region.height() <= source.height() && region.x() + region.width() <= target.width()
+				&& region.y() + region.height() <= target.height(), "Region must be inside both images");
+
+		if (lowThreshold > highThreshold) {
+			double swap = lowThreshold;
+			lowThreshold = highThreshold;
+			highThreshold = swap;
+		}
+
+		allocate(source, region.width(), region.height());
+		sourceOrigin = region.y() * sourceStep + region.x() * 3;
+		sourceBuffer = source.getByteBuffer();
+		rowsRead = 0;
+
+		int top = findCandidates(useChannels, (int) Math.floor(lowThreshold), (int) Math.floor(highThreshold));
+		sourceBuffer = null;
+		followEdges(top);
+
+		ByteBuffer buffer = target.getByteBuffer();
+		for (int y = 0; y < height; y++) {
+			int mapRow = (y + 1) * mapStep + 1;
+			for (int x = 0; x < width; x++) {
+				edges[x] = map[mapRow + x] == STRONG ? (byte) 255 : 0;
+			}
+			buffer.position((region.y() + y) * target.widthStep() + region.x());
+			buffer.put(edges, 0, width);
+		}
+	}
+
+	private void allocate(IplImage source, int width, int height) {
+		if (pixels != null && this.width == width && this.height == height) {
+			sourceStep = source.widthStep();
+			return;
+		}
+
+		this.width = width;
+		this.height = height;
+		sourceStep = source.widthStep();
+		mapStep = width + 2;
+
+		pixels = new byte[3 * width * 3];
+		edges = new byte[width];
+		magnitude = new int[3 * mapStep];
+		dx = new int[3 * width];
+		dy = new int[3 * width];
+		map = new byte[mapStep * (height + 2)];
+		stack = new int[width * height];
+		neighbours = new int[] { -mapStep - 1, -mapStep, -mapStep + 1, -1, 1, mapStep - 1, mapStep, mapStep + 1 };
+	}
+
+	/**
+	 * Fills the map with local maxima above the low threshold, pushing the
+	 * ones above the high threshold onto the stack.
+	 *
+	 * @return the stack size
+	 */
+	private int findCandidates(boolean[] useChannels, int low, int high) {
+		int top = 0;
+
+		// Rows outside the image have no gradient
+		clearRow(-1);
+		computeRow(0, useChannels);
+
+		for (int y = 0; y < height; y++) {
+			if (y + 1 < height) {
+				computeRow(y + 1, useChannels);
+			} else {
+				clearRow(y + 1);
+			}
+
+			int previous = slot(y - 1) * mapStep + 1;
+			int current = slot(y) * mapStep + 1;
+			int next = slot(y + 1) * mapStep + 1;
+			int gradient = slot(y) * width;
+			int mapRow = (y + 1) * mapStep + 1;
+
+			for (int x = 0; x < width; x++) {
+				int m = magnitude[current + x];
+				byte state = NONE;
+
+				if (m > low) {
+					int gx = dx[gradient + x];
+					int gy = dy[gradient + x];
+					int xs = Math.abs(gx);
+					int ys = Math.abs(gy) << 15;
+					int tg22x = xs * TG22;
+
+					boolean isMaximum;
+					if (ys < tg22x) {
+						// Horizontal gradient, compare left and right
+						isMaximum = m > magnitude[current + x - 1] && m >= magnitude[current + x + 1];
+					} else if (ys > tg22x + (xs << 16)) {
+						// Vertical gradient, compare above and below
+						isMaximum = m > magnitude[previous + x] && m >= magnitude[next + x];
+					} else {
+						int s = (gx ^ gy) < 0 ? -1 : 1;
+						isMaximum = m > magnitude[previous + x - s] && m > magnitude[next + x + s];
+					}
+
+					if (isMaximum) {
+						if (m > high) {
+							state = STRONG;
+							stack[top++] = mapRow + x;
+						} else {
+							state = WEAK;
+						}
+					}
+				}
+
+				map[mapRow + x] = state;
+			}
+		}
+
+		return top;
+	}
+
+	/**
+	 * Promotes weak candidates connected to strong edges.
+	 */
+	private void followEdges(int top) {
+		while (top > 0) {
+			int i = stack[--top];
+			for (int n = 0; n < neighbours.length; n++) {
+				int j = i + neighbours[n];
+				if (map[j] == WEAK) {
+					map[j] = STRONG;
+					stack[top++] = j;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sobel gradient of one image row, keeping whichever enabled channel has
+	 * the largest L1 magnitude at each pixel. Edge pixels are replicated.
+	 */
+	private void computeRow(int y, boolean[] useChannels) {
+		// Rows are computed in order, so the row two above is no longer needed
+		while (rowsRead <= Math.min(y + 1, height - 1)) {
+			sourceBuffer.position(sourceOrigin + rowsRead * sourceStep);
+			sourceBuffer.get(pixels, (rowsRead % 3) * width * 3, width * 3);
+			rowsRead++;
+		}
+
+		int up = (Math.max(y - 1, 0) % 3) * width * 3;
+		int middle = (y % 3) * width * 3;
+		int down = (Math.min(y + 1, height - 1) % 3) * width * 3;
+		int row = slot(y) * mapStep + 1;
+		int gradient = slot(y) * width;
+
+		for (int x = 0; x < width; x++) {
+			int left = Math.max(x - 1, 0) * 3;
+			int centre = x * 3;
+			int right = Math.min(x + 1, width - 1) * 3;
+
+			int best = 0;
+			int bestX = 0;
+			int bestY = 0;
+			for (int channel = 0; channel < 3; channel++) {
+				if (!useChannels[channel]) {
+					continue;
+				}
+
+				int ul = pixels[up + left + channel] & 0xff;
+				int uc = pixels[up + centre + channel] & 0xff;
+				int ur = pixels[up + right + channel] & 0xff;
+				int ml = pixels[middle + left + channel] & 0xff;
+				int mr = pixels[middle + right + channel] & 0xff;
+				int dl = pixels[down + left + channel] & 0xff;
+				int dc = pixels[down + centre + channel] & 0xff;
+				int dr = pixels[down + right + channel] & 0xff;
+
+				int gx = (ur + 2 * mr + dr) - (ul + 2 * ml + dl);
+				int gy = (dl + 2 * dc + dr) - (ul + 2 * uc + ur);
+				int m = Math.abs(gx) + Math.abs(gy);
+				if (m > best) {
+					best = m;
+					bestX = gx;
+					bestY = gy;
+				}
+			}
+
+			magnitude[row + x] = best;
+			dx[gradient + x] = bestX;
+			dy[gradient + x] = bestY;
+		}
+	}
+
+	private void clearRow(int y) {
+		int row = slot(y) * mapStep;
+		for (int x = 0; x < mapStep; x++) {
+			magnitude[row + x] = 0;
+		}
+	}
+
+	private int slot(int y) {
+		return (y + 3) % 3;
+	}
+}
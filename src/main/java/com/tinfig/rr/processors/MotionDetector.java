@@ -1,10 +1,21 @@
 package com.tinfig.rr.processors;
 
 import java.awt.Container;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.swing.JCheckBox;
+import javax.swing.JRadioButton;
 import javax.swing.JSlider;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -12,22 +23,35 @@ import javax.swing.event.ChangeListener;
 import org.apache.commons.configuration.ConfigurationException;
 
 import com.googlecode.javacpp.Loader;
-import com.googlecode.javacpp.Pointer;
 import com.googlecode.javacv.cpp.opencv_core;
 import com.googlecode.javacv.cpp.opencv_core.CvContour;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
 import com.googlecode.javacv.cpp.opencv_core.CvMemStorage;
 import com.googlecode.javacv.cpp.opencv_core.CvPoint;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
 import com.googlecode.javacv.cpp.opencv_core.CvScalar;
 import com.googlecode.javacv.cpp.opencv_core.CvSeq;
+import com.googlecode.javacv.cpp.opencv_core.CvSlice;
 import com.googlecode.javacv.cpp.opencv_core.CvSize;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 import com.googlecode.javacv.cpp.opencv_imgproc;
+import com.tinfig.rr.ArtifactKey;
 import com.tinfig.rr.Frame;
+import com.tinfig.rr.ImagePool;
 import com.tinfig.rr.Processor;
 import com.tinfig.rr.Settings;
 
 public class MotionDetector extends Processor {
 	public static final String ARTIFACT_BUILDING_FEATURES = "rectangle.buildingFeatures";
+	public static final ArtifactKey<IplImage> BUILDING_FEATURES = ArtifactKey.register(ARTIFACT_BUILDING_FEATURES,
+			IplImage.class);
+
+	/**
+	 * Integer, the number of rectangles found in this frame (in tiled mode,
+	 * in the cached features this frame's come from)
+	 */
+	public static final String ARTIFACT_RECTANGLE_COUNT = "rectangle.count";
+	public static final ArtifactKey<Integer> RECTANGLE_COUNT = ArtifactKey.registerInt(ARTIFACT_RECTANGLE_COUNT);
 
 	private static final String SHOW_CANNY = "rectangle.showCanny";
 	private static final String SHOW_CONTOURS = "rectangle.showContours";
@@ -47,12 +71,31 @@ public class MotionDetector extends Processor {
 	private static final String MAX_COSINE = "rectangle.maxCosine";
 	private static final String BLUR = "rectangle.blur";
 	private static final String ACCUMULATOR_ALPHA = "rectangle.accumulatorAlpha";
+	private static final String ACCUMULATOR = "rectangle.accumulator";
 	private static final String HOUGH_THRESHOLD = "rectangle.houghThreshold";
 	private static final String HOUGH_MIN_LINE_LENGTH = "rectangle.houghMinLineLength";
 	private static final String HOUGH_MAX_GAP_LENGTH = "rectangle.maxGapLength";
+	private static final String PARALLEL = "rectangle.parallel";
+	private static final String STRIPES = "rectangle.stripes";
+	private static final String EDGE_ENGINE = "rectangle.edgeEngine";
+	private static final String TILED = "rectangle.tiled";
+	private static final String TILE_SIZE = "rectangle.tileSize";
+	private static final String TILE_MARGIN = "rectangle.tileMargin";
+	private static final String TILE_PIXEL_THRESHOLD = "rectangle.tilePixelThreshold";
+	private static final String TILE_CHANGED_THRESHOLD = "rectangle.tileChangedThreshold";
+	private static final String TILE_REFRESH_FRAMES = "rectangle.tileRefreshFrames";
+	private static final String PYRAMID_LEVEL = "rectangle.pyramidLevel";
 
 	private static final int MAX_CONTOURS = 10000;
 	private static final int MAX_LINES = 200;
+	private static final int MAX_STRIPES = 8;
+	private static final int MAX_PYRAMID_LEVEL = 3;
+
+	/**
+	 * Shared by every camera's detector so the cores are divided between them
+	 * rather than each camera starting its own threads.
+	 */
+	private static final ForkJoinPool WORKERS = new ForkJoinPool();
 
 	// Channel order in color images from OpenCV
 	private static final int RED_CHANNEL = 2;
@@ -62,10 +105,9 @@ public class MotionDetector extends Processor {
 	private IplImage compositeImage;
 	private IplImage cannyImage;
 	private IplImage contoursImage;
-	private IplImage accumulator;
+	private FeatureAccumulator accumulator;
 	private IplImage[] channels = new IplImage[3];
 	private IplImage[] canny = new IplImage[3];
-	private IplImage[] edges = new IplImage[3];
 	private IplImage buildingFeatures;
 
 	private boolean useRedChannel = true;
@@ -89,11 +131,82 @@ public class MotionDetector extends Processor {
 	private CvMemStorage minAreaRectStorage;
 	private CvSeq contours;
 
+	// Reused every frame so the contour and line loops don't allocate. Points
+	// are copied out of sequences in bulk and read from Java.
+	private final IntBuffer quadPoints = newIntBuffer(4 * 2);
+	private final IntBuffer linePoints = newIntBuffer(MAX_LINES * 4);
+	private final CvSlice lineSlice = new CvSlice();
+	private final CvPoint lineStart = new CvPoint();
+	private final CvPoint lineEnd = new CvPoint();
+	private final CvSize blurSize = new CvSize();
+	private final CvSize stripeBlurSize = new CvSize();
+	private final CvSize videoSize = new CvSize();
+	private final CvSize edgeImageSize = new CvSize();
+	private final CvRect wholeRegion = new CvRect();
+
+	private ImagePool pool;
+
+	private int rectangleCount;
+
+	private EdgeEngine edgeEngine = EdgeEngine.SPLIT;
+	private final FusedCanny fusedCanny = new FusedCanny();
+	private final boolean[] useChannels = new boolean[3];
+
+	private boolean tiled;
+	private int tileSize = 80;
+	private int tileMargin = 32;
+	private int tilePixelThreshold = 20;
+	private double tileChangedThreshold = 0.005;
+	// Every tile is reprocessed this often, 0 for never, to pick up anything
+	// too big to be found inside a dirty region and its margin
+	private int tileRefreshFrames = 30;
+	private int framesSinceRefresh;
+
+	// Detection runs on the frame halved this many times; 0 is full size
+	private int pyramidLevel;
+	// pyramidLevel for the frame being processed, which the slider can't
+	// change halfway through
+	private int level;
+	private final IplImage[] pyramid = new IplImage[MAX_PYRAMID_LEVEL];
+	private final CvSize pyramidSize = new CvSize();
+	private DirtyTiles tiles;
+	private IplImage tileFeatures;
+	private IplImage cachedFeatures;
+	private int tileSignature;
+	private boolean tilesCurrent;
+	private final CvRect tileRegion = new CvRect();
+	// Centres of the rectangles the last findFeatures call found, as x, y
+	// pairs relative to the region of interest at the pyramid level
+	private int[] rectangleCentres = new int[64];
+	private final CvRect detectionRect = new CvRect();
+	private final CvRect featuresRect = new CvRect();
+	// The images that take a region's detection rectangle as their ROI
+	private final IplImage[] regionImages = new IplImage[4];
+
+	private boolean parallel;
+	private int stripes = 1;
+	private Stripe[] stripeTasks;
+	private int stripeTasksHeight;
+	// The stripes of the enabled channels, run together by runStripes
+	private final List<Stripe> enabledStripes = new ArrayList<>();
+	private final RecursiveAction runStripes = new RecursiveAction() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+			invokeAll(enabledStripes);
+		}
+	};
+	private int stripeBlur;
+	private int stripeCannyLowThreshold;
+	private int stripeCannyHighThreshold;
+
 	private int blur = 1;
 
 	private double epsilon = 0.2;
 	private double maxCosine = 0.3;
 	private double accumulatorAlpha = 0.3;
+	private AccumulatorType accumulatorType = AccumulatorType.FLOAT;
 
 	private int houghErode = 0;
 	private int houghDilate = 1;
@@ -120,21 +233,39 @@ public class MotionDetector extends Processor {
 		epsilon = settings.getDouble(EPSILON, epsilon);
 		maxCosine = settings.getDouble(MAX_COSINE, maxCosine);
 		accumulatorAlpha = settings.getDouble(ACCUMULATOR_ALPHA, accumulatorAlpha);
+		accumulatorType = AccumulatorType.valueOf(settings.getString(ACCUMULATOR, accumulatorType.toString()));
 
 		houghErode = settings.getInteger(HOUGH_ERODE, houghErode);
 		houghDilate = settings.getInteger(HOUGH_DILATE, houghDilate);
 		houghThreshold = settings.getInteger(HOUGH_THRESHOLD, houghThreshold);
 		houghMinLineLength = settings.getDouble(HOUGH_MIN_LINE_LENGTH, houghMinLineLength);
 		houghMaxGapLength = settings.getDouble(HOUGH_MAX_GAP_LENGTH, houghMaxGapLength);
+		edgeEngine = EdgeEngine.valueOf(settings.getString(EDGE_ENGINE, edgeEngine.toString()));
+		parallel = settings.getBoolean(PARALLEL, parallel);
+		tiled = settings.getBoolean(TILED, tiled);
+		tileSize = Math.max(8, settings.getInteger(TILE_SIZE, tileSize));
+		tileMargin = settings.getInteger(TILE_MARGIN, tileMargin);
+		tilePixelThreshold = settings.getInteger(TILE_PIXEL_THRESHOLD, tilePixelThreshold);
+		tileChangedThreshold = settings.getDouble(TILE_CHANGED_THRESHOLD, tileChangedThreshold);
+		tileRefreshFrames = Math.max(0, settings.getInteger(TILE_REFRESH_FRAMES, tileRefreshFrames));
+		pyramidLevel = Math.max(0, Math.min(MAX_PYRAMID_LEVEL, settings.getInteger(PYRAMID_LEVEL, pyramidLevel)));
+		stripes = Math.max(1, Math.min(MAX_STRIPES, settings.getInteger(STRIPES, stripes)));
 
-		contourStorage = CvMemStorage.create();
-		polyStorage = CvMemStorage.create();
-		linesStorage = CvMemStorage.create();
-		minAreaRectStorage = CvMemStorage.create();
-		hullStorage = CvMemStorage.create();
+		pool = frame.getImagePool();
+		contourStorage = pool.createStorage(this);
+		polyStorage = pool.createStorage(this);
+		linesStorage = pool.createStorage(this);
+		minAreaRectStorage = pool.createStorage(this);
+		hullStorage = pool.createStorage(this);
 		contours = new CvSeq();
 
 		Container container = frame.getArtifact(ControlsProcessor.ARTIFACT_CONTROL_CONTAINER, Container.class);
+		if (container != null) {
+			createControls(container);
+		}
+	}
+
+	private void createControls(Container container) {
 		createCheckBox(container, "Show Canny", showCanny, new ItemListener() {
 			@Override
 			public void itemStateChanged(ItemEvent e) {
@@ -177,6 +308,43 @@ public class MotionDetector extends Processor {
 				useBlueChannel = ((JCheckBox) e.getSource()).isSelected();
 			}
 		});
+		createSlider(container, "Pyramid level", 0, MAX_PYRAMID_LEVEL, pyramidLevel, new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				pyramidLevel = ((JSlider) e.getSource()).getValue();
+			}
+		});
+		createCheckBox(container, "Only reprocess changed tiles", tiled, new ItemListener() {
+			@Override
+			public void itemStateChanged(ItemEvent e) {
+				tiled = ((JCheckBox) e.getSource()).isSelected();
+			}
+		});
+		createSlider(container, "Tile size", 16, 256, tileSize, new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				tileSize = ((JSlider) e.getSource()).getValue();
+			}
+		});
+		createSlider(container, "Reprocess all tiles every N frames", 0, 300, tileRefreshFrames,
+				new ChangeListener() {
+					@Override
+					public void stateChanged(ChangeEvent e) {
+						tileRefreshFrames = ((JSlider) e.getSource()).getValue();
+					}
+				});
+		createCheckBox(container, "Parallel channels", parallel, new ItemListener() {
+			@Override
+			public void itemStateChanged(ItemEvent e) {
+				parallel = ((JCheckBox) e.getSource()).isSelected();
+			}
+		});
+		createSlider(container, "Stripes per channel", 1, MAX_STRIPES, stripes, new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				stripes = ((JSlider) e.getSource()).getValue();
+			}
+		});
 		createSlider(container, "Blur", -1, 6, blur, new ChangeListener() {
 			@Override
 			public void stateChanged(ChangeEvent e) {
@@ -225,6 +393,19 @@ public class MotionDetector extends Processor {
 				accumulatorAlpha = ((JSlider) e.getSource()).getValue() / 100.0;
 			}
 		});
+		createRadioGroup(container, new String[] { "Float", "Fixed" }, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				switch (((JRadioButton) e.getSource()).getText()) {
+				case "Float":
+					accumulatorType = AccumulatorType.FLOAT;
+					break;
+				case "Fixed":
+					accumulatorType = AccumulatorType.FIXED;
+					break;
+				}
+			}
+		}, accumulatorType.toString(), "Accumulator");
 		createSlider(container, "Hough erode", 0, 10, (int) houghErode, new ChangeListener() {
 			@Override
 			public void stateChanged(ChangeEvent e) {
@@ -255,7 +436,6 @@ public class MotionDetector extends Processor {
 				houghMaxGapLength = ((JSlider) e.getSource()).getValue();
 			}
 		});
-
 	}
 
 	@Override
@@ -275,107 +455,392 @@ public class MotionDetector extends Processor {
 		settings.set(EPSILON, epsilon);
 		settings.set(MAX_COSINE, maxCosine);
 		settings.set(ACCUMULATOR_ALPHA, accumulatorAlpha);
+		settings.set(ACCUMULATOR, accumulatorType);
 		settings.set(HOUGH_ERODE, houghErode);
 		settings.set(HOUGH_DILATE, houghDilate);
 		settings.set(HOUGH_THRESHOLD, houghThreshold);
 		settings.set(HOUGH_MIN_LINE_LENGTH, houghMinLineLength);
 		settings.set(HOUGH_MAX_GAP_LENGTH, houghMaxGapLength);
+		settings.set(EDGE_ENGINE, edgeEngine);
+		settings.set(PARALLEL, parallel);
+		settings.set(TILED, tiled);
+		settings.set(TILE_SIZE, tileSize);
+		settings.set(TILE_MARGIN, tileMargin);
+		settings.set(TILE_PIXEL_THRESHOLD, tilePixelThreshold);
+		settings.set(TILE_CHANGED_THRESHOLD, tileChangedThreshold);
+		settings.set(TILE_REFRESH_FRAMES, tileRefreshFrames);
+		settings.set(PYRAMID_LEVEL, pyramidLevel);
+		settings.set(STRIPES, stripes);
+
+		releaseWorkingImages();
+		if (accumulator != null) {
+			accumulator.release();
+			accumulator = null;
+		}
+		if (tiles != null) {
+			tiles.release();
+			pool.release(this, tileFeatures);
+			pool.release(this, cachedFeatures);
+			tiles = null;
+			tileFeatures = null;
+			cachedFeatures = null;
+		}
+
+		pool.releaseStorage(this, contourStorage);
+		pool.releaseStorage(this, polyStorage);
+		pool.releaseStorage(this, linesStorage);
+		pool.releaseStorage(this, minAreaRectStorage);
+		pool.releaseStorage(this, hullStorage);
 	}
 
 	@Override
 	public void process(Frame frame) throws ConfigurationException {
+		IplImage video = frame.getVideoImage();
+		CvSize size = videoSize.width(video.width()).height(video.height());
+
+		// Edges and contours are found at the pyramid level's size
+		level = pyramidLevel;
+		int width = size.width();
+		int height = size.height();
+		for (int i = 0; i < level; i++) {
+			width = (width + 1) / 2;
+			height = (height + 1) / 2;
+		}
+		if (compositeImage != null && (compositeImage.width() != width || compositeImage.height() != height)) {
+			releaseWorkingImages();
+		}
 		if (compositeImage == null) {
-			compositeImage = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 3);
+			CvSize detectionSize = new CvSize(width, height);
+			compositeImage = pool.borrow(this, detectionSize, opencv_core.IPL_DEPTH_8U, 3);
+			cannyImage = pool.borrow(this, detectionSize, opencv_core.IPL_DEPTH_8U, 1);
+			contoursImage = pool.borrow(this, detectionSize, opencv_core.IPL_DEPTH_8U, 1);
 		}
 
-		if (cannyImage == null) {
-			cannyImage = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
-		} else {
-			// Start blank every time
-			opencv_core.cvZero(cannyImage);
+		// Each frame gets its own features image so later pipeline stages can
+		// read it while this stage works on the next frame
+		buildingFeatures = frame.get(BUILDING_FEATURES);
+		if (buildingFeatures == null) {
+			buildingFeatures = pool.borrow(frame, size, opencv_core.IPL_DEPTH_8U, 1);
+			frame.set(BUILDING_FEATURES, buildingFeatures);
 		}
 
-		if (contoursImage == null) {
-			contoursImage = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+		if (MotionGate.isStatic(frame) && accumulator != null && !accumulator.isEmpty()) {
+			// Nothing moved, so pass on the same features as last time
+			accumulator.read(buildingFeatures);
+			frame.setInt(RECTANGLE_COUNT, rectangleCount);
+			putDebugImages(frame);
+			return;
 		}
 
-		if (channels[0] == null) {
-			channels[0] = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
-			channels[1] = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
-			channels[2] = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+		IplImage image = downsample(frame.getVideoImage());
+		try {
+			if (tiled) {
+				rectangleCount = findFeaturesInTiles(frame, image);
+			} else {
+				tilesCurrent = false;
+
+				// Start blank every time
+				opencv_core.cvZero(cannyImage);
+				opencv_core.cvZero(buildingFeatures);
+
+				findEdges(image, wholeRegion.x(0).y(0).width(image.width()).height(image.height()));
+				rectangleCount = findFeatures(frame, image, buildingFeatures);
+			}
+		} finally {
+			for (int i = 0; i < level; i++) {
+				pool.release(this, pyramid[i]);
+				pyramid[i] = null;
+			}
 		}
+		frame.setInt(RECTANGLE_COUNT, rectangleCount);
 
-		if (canny[0] == null) {
-			canny[0] = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
-			canny[1] = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
-			canny[2] = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+		// Accumulate this frame's rects, leaving the 8-bit average for
+		// further processing. Switching type starts a new average.
+		if (accumulator == null || accumulator.getType() != accumulatorType) {
+			if (accumulator != null) {
+				accumulator.release();
+			}
+			accumulator = accumulatorType == AccumulatorType.FIXED ? new FixedPointAccumulator()
+					: new FloatAccumulator(pool, this);
 		}
+		accumulator.accumulate(buildingFeatures, accumulatorAlpha);
+	}
 
-		if (edges[0] == null) {
-			edges[0] = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
-			edges[1] = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
-			edges[2] = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+	/**
+	 * @return the video image halved {@link #level} times, or the image itself
+	 *         at level 0
+	 */
+	private IplImage downsample(IplImage image) {
+		IplImage source = image;
+		for (int i = 0; i < level; i++) {
+			pyramidSize.width((source.width() + 1) / 2).height((source.height() + 1) / 2);
+			pyramid[i] = pool.borrow(this, pyramidSize, source.depth(), source.nChannels());
+			opencv_imgproc.cvPyrDown(source, pyramid[i], opencv_imgproc.CV_GAUSSIAN_5x5);
+			source = pyramid[i];
 		}
+		return source;
+	}
 
-		if (buildingFeatures == null) {
-			buildingFeatures = IplImage.create(frame.getVideoImage().cvSize(), opencv_core.IPL_DEPTH_8U, 1);
-		} else {
-			// Start blank every time
-			opencv_core.cvZero(buildingFeatures);
+	private void releaseWorkingImages() {
+		if (compositeImage != null) {
+			pool.release(this, compositeImage);
+			pool.release(this, cannyImage);
+			pool.release(this, contoursImage);
+			compositeImage = null;
+			cannyImage = null;
+			contoursImage = null;
 		}
+	}
 
-		// Split frame into color channels
-		opencv_core.cvSplit(frame.getVideoImage(), channels[0], channels[1], channels[2], null);
+	/**
+	 * Reruns detection only where the picture changed, patching the changed
+	 * tiles of a cached copy of the (unaccumulated) features, which then
+	 * becomes this frame's features.
+	 * <p>
+	 * Changes are found at full size. At higher pyramid levels each region is
+	 * widened to whole pixels of the detection image.
+	 * <p>
+	 * The result can differ from processing the whole frame. A rectangle that
+	 * doesn't fit inside a dirty region and its margin can't be found there,
+	 * and the part of it inside the changed tiles is dropped from the cache.
+	 * Lines are only found within regions too, and Canny can follow a weak
+	 * edge differently near a region's edge. Every
+	 * {@link #tileRefreshFrames} frames all tiles are reprocessed as one
+	 * region, which is the same as processing the whole frame, so anything
+	 * lost is back by then.
+	 *
+	 * @param detectionImage
+	 *            the video image at the pyramid level's size
+	 * @return the number of rectangles in the cached features
+	 */
+	private int findFeaturesInTiles(Frame frame, IplImage detectionImage) {
+		IplImage image = frame.getVideoImage();
+		if (tiles == null) {
+			tiles = new DirtyTiles(pool, this);
+			tileFeatures = pool.borrow(this, image.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+			cachedFeatures = pool.borrow(this, image.cvSize(), opencv_core.IPL_DEPTH_8U, 1);
+		}
 
-		frame.getArtifacts().put(ARTIFACT_BUILDING_FEATURES, buildingFeatures);
-		if (showFeatures) {
-			frame.getDebugImages().put("building features", buildingFeatures);
+		// Cached tiles are only good for the settings they were found with,
+		// and only if they've been kept up to date
+		int signature = detectionSignature();
+		boolean refresh = !tilesCurrent || signature != tileSignature
+				|| (tileRefreshFrames > 0 && framesSinceRefresh >= tileRefreshFrames);
+		tiles.update(image, tileSize, tilePixelThreshold, tileChangedThreshold, tileMargin, refresh);
+		tileSignature = signature;
+		tilesCurrent = true;
+		framesSinceRefresh = refresh ? 1 : framesSinceRefresh + 1;
+		regionImages[0] = detectionImage;
+		regionImages[1] = cannyImage;
+		regionImages[2] = contoursImage;
+		regionImages[3] = compositeImage;
+		for (int region = 0; region < tiles.getRegionCount(); region++) {
+			CvRect rect = tiles.getRegion(region, tileRegion);
+			int left = rect.x() >> level;
+			int top = rect.y() >> level;
+			int right = Math.min((rect.x() + rect.width() + (1 << level) - 1) >> level, detectionImage.width());
+			int bottom = Math.min((rect.y() + rect.height() + (1 << level) - 1) >> level, detectionImage.height());
+			detectionRect.x(left).y(top).width(right - left).height(bottom - top);
+			featuresRect.x(left << level).y(top << level)
+					.width(Math.min(right << level, image.width()) - (left << level))
+					.height(Math.min(bottom << level, image.height()) - (top << level));
+
+			for (IplImage regionImage : regionImages) {
+				opencv_core.cvSetImageROI(regionImage, detectionRect);
+			}
+			opencv_core.cvSetImageROI(tileFeatures, featuresRect);
+			int rectangles;
+			try {
+				opencv_core.cvZero(cannyImage);
+				opencv_core.cvZero(tileFeatures);
+				findEdges(detectionImage, detectionRect);
+				rectangles = findFeatures(frame, detectionImage, tileFeatures);
+			} finally {
+				for (IplImage regionImage : regionImages) {
+					opencv_core.cvResetImageROI(regionImage);
+				}
+				opencv_core.cvResetImageROI(tileFeatures);
+			}
+			tiles.commit(region, tileFeatures, cachedFeatures);
+
+			int half = (1 << level) >> 1;
+			for (int i = 0; i < rectangles; i++) {
+				tiles.countRectangle(region, ((left + rectangleCentres[i * 2]) << level) + half,
+						((top + rectangleCentres[i * 2 + 1]) << level) + half);
+			}
 		}
 
-		opencv_core.cvClearMemStorage(contourStorage);
-		opencv_core.cvClearMemStorage(polyStorage);
-		opencv_core.cvClearMemStorage(hullStorage);
-		opencv_core.cvClearMemStorage(linesStorage);
-		opencv_core.cvClearMemStorage(minAreaRectStorage);
-		if (!contours.isNull()) {
-			opencv_core.cvClearSeq(contours);
+		// Don't hold on to this frame's detection image
+		regionImages[0] = null;
+
+		opencv_core.cvCopy(cachedFeatures, buildingFeatures);
+		return tiles.getRectangleCount();
+	}
+
+	/**
+	 * @return a hash of every setting that changes what's detected
+	 */
+	private int detectionSignature() {
+		int hash = 1;
+		hash = hash(hash, edgeEngine.ordinal());
+		hash = hash(hash, useRedChannel ? 1 : 0);
+		hash = hash(hash, useGreenChannel ? 1 : 0);
+		hash = hash(hash, useBlueChannel ? 1 : 0);
+		hash = hash(hash, parallel ? stripes : 0);
+		hash = hash(hash, blur);
+		hash = hash(hash, cannyLowThreshold);
+		hash = hash(hash, cannyHighThreshold);
+		hash = hash(hash, areaMin);
+		hash = hash(hash, areaMax);
+		hash = hash(hash, epsilon);
+		hash = hash(hash, maxCosine);
+		hash = hash(hash, houghErode);
+		hash = hash(hash, houghDilate);
+		hash = hash(hash, houghThreshold);
+		hash = hash(hash, houghMinLineLength);
+		hash = hash(hash, houghMaxGapLength);
+		hash = hash(hash, tileMargin);
+		return hash(hash, level);
+	}
+
+	/**
+	 * Mixes a value into a hash the way {@link Arrays#hashCode(double[])}
+	 * does, without needing an array.
+	 */
+	private static int hash(int hash, double value) {
+		long bits = Double.doubleToLongBits(value);
+		return 31 * hash + (int) (bits ^ (bits >>> 32));
+	}
+
+	/**
+	 * Finds edges in the image (or its region of interest) into the Canny
+	 * image (which must have the same region of interest).
+	 *
+	 * @param region
+	 *            the image's region of interest, or the whole image
+	 */
+	private void findEdges(IplImage image, CvRect region) {
+		// Scratch images are the size of the whole image
+		edgeImageSize.width(image.width()).height(image.height());
+		if (edgeEngine == EdgeEngine.FUSED) {
+			findEdgesFused(image, region);
+		} else {
+			findEdgesSplit(image, region);
 		}
+	}
 
-		if (showComposite) {
-			opencv_core.cvCopy(frame.getVideoImage(), compositeImage);
-			frame.getDebugImages().put("composite", compositeImage);
+	private void findEdgesFused(IplImage image, CvRect region) {
+		for (int channel = 0; channel < 3; channel++) {
+			useChannels[channel] = isChannelEnabled(channel);
 		}
-		if (showCanny) {
-			frame.getDebugImages().put("canny", cannyImage);
+
+		if (blur < 0) {
+			fusedCanny.detect(image, useChannels, cannyLowThreshold, cannyHighThreshold, cannyImage, region);
+			return;
 		}
-		if (showContours) {
-			frame.getDebugImages().put("contours", contoursImage);
+
+		IplImage blurred = pool.borrow(this, edgeImageSize, opencv_core.IPL_DEPTH_8U, 3);
+		opencv_core.cvSetImageROI(blurred, region);
+		try {
+			opencv_imgproc.GaussianBlur(image, blurred, kernelSize(blurSize, blur), 0, 0,
+					opencv_imgproc.BORDER_DEFAULT);
+			fusedCanny.detect(blurred, useChannels, cannyLowThreshold, cannyHighThreshold, cannyImage, region);
+		} finally {
+			opencv_core.cvResetImageROI(blurred);
+			pool.release(this, blurred);
 		}
+	}
 
-		// Pre-process each channel
+	private void findEdgesSplit(IplImage image, CvRect region) {
+		// Per-channel images are only needed while this method runs, so other
+		// processors can have them the rest of the time
 		for (int channel = 0; channel < 3; channel++) {
-			if (!isChannelEnabled(channel)) {
-				continue;
+			channels[channel] = pool.borrow(this, edgeImageSize, opencv_core.IPL_DEPTH_8U, 1);
+			canny[channel] = pool.borrow(this, edgeImageSize, opencv_core.IPL_DEPTH_8U, 1);
+			opencv_core.cvSetImageROI(channels[channel], region);
+			opencv_core.cvSetImageROI(canny[channel], region);
+		}
+
+		try {
+			// Split frame into color channels
+			opencv_core.cvSplit(image, channels[0], channels[1], channels[2], null);
+
+			if (parallel) {
+				// Tiled regions are small already; striping them would mostly
+				// add margins
+				findEdgesInParallel(region.height(), tiled ? 1 : stripes);
+			} else {
+				// Pre-process each channel
+				for (int channel = 0; channel < 3; channel++) {
+					if (!isChannelEnabled(channel)) {
+						continue;
+					}
+
+					if (blur >= 0) {
+						opencv_imgproc.GaussianBlur(channels[channel], channels[channel],
+								kernelSize(blurSize, blur), 0, 0, opencv_imgproc.BORDER_DEFAULT);
+					}
+				}
+
+				// Do Canny on each channel
+				for (int channel = 0; channel < 3; channel++) {
+					if (!isChannelEnabled(channel)) {
+						continue;
+					}
+
+					// Find edges
+					opencv_imgproc.cvCanny(channels[channel], canny[channel], cannyLowThreshold,
+							cannyHighThreshold, 3);
+				}
 			}
 
-			if (blur >= 0) {
-				opencv_imgproc.GaussianBlur(channels[channel], channels[channel],
-						new CvSize(blur * 2 + 1, blur * 2 + 1), 0, 0, opencv_imgproc.BORDER_DEFAULT);
+			// Add to the combined Canny image, always in channel order
+			for (int channel = 0; channel < 3; channel++) {
+				if (isChannelEnabled(channel)) {
+					opencv_core.cvOr(canny[channel], cannyImage, cannyImage, null);
+				}
+			}
+		} finally {
+			for (int channel = 0; channel < 3; channel++) {
+				opencv_core.cvResetImageROI(channels[channel]);
+				opencv_core.cvResetImageROI(canny[channel]);
+				pool.release(this, channels[channel]);
+				pool.release(this, canny[channel]);
+				channels[channel] = null;
+				canny[channel] = null;
 			}
 		}
+	}
 
-		// Do Canny on each channel
-		for (int channel = 0; channel < 3; channel++) {
-			if (!isChannelEnabled(channel)) {
-				continue;
-			}
+	/**
+	 * Finds rectangles and lines in the Canny image and draws them on the
+	 * target, scaled up from the pyramid level to the target's size. Sizes
+	 * and lengths in the settings are in full size pixels and are scaled
+	 * down to match.
+	 *
+	 * @param image
+	 *            the image the Canny image was found in
+	 * @return the number of rectangles found
+	 */
+	private int findFeatures(Frame frame, IplImage image, IplImage target) {
+		double lengthScale = 1 << level;
+		double minArea = areaMin / (lengthScale * lengthScale);
+		double maxArea = areaMax / (lengthScale * lengthScale);
 
-			// Find edges
-			opencv_imgproc.cvCanny(channels[channel], canny[channel], cannyLowThreshold, cannyHighThreshold, 3);
+		opencv_core.cvClearMemStorage(contourStorage);
+		opencv_core.cvClearMemStorage(polyStorage);
+		opencv_core.cvClearMemStorage(hullStorage);
+		opencv_core.cvClearMemStorage(linesStorage);
+		opencv_core.cvClearMemStorage(minAreaRectStorage);
+		if (!contours.isNull()) {
+			opencv_core.cvClearSeq(contours);
+		}
 
-			// Add to the combined Canny image
-			opencv_core.cvOr(canny[channel], cannyImage, cannyImage, null);
+		if (showComposite) {
+			opencv_core.cvCopy(image, compositeImage);
 		}
+		putDebugImages(frame);
+
 		// Find contours on Canny image, but copy to a temp image first because
 		// find contours modifies the source image.
 		opencv_core.cvCopy(cannyImage, contoursImage);
@@ -383,11 +848,13 @@ public class MotionDetector extends Processor {
 				opencv_imgproc.CV_RETR_LIST, opencv_imgproc.CV_CHAIN_APPROX_SIMPLE);
 
 		// Find rectangles
+		int rectangles = 0;
 		if (!contours.isNull()) {
 			if (showComposite && showContours) {
 				opencv_core.cvDrawContours(compositeImage, contours, CvScalar.GREEN, CvScalar.GREEN, 1, 1, 0);
 			}
 
+			double minPerimeter = 4 * Math.sqrt(minArea);
 			int i = 0;
 			CvSeq contour;
 			for (contour = contours; contour != null; contour = contour.h_next()) {
@@ -395,16 +862,33 @@ public class MotionDetector extends Processor {
 					break;
 				}
 
+				// Simplifying can't add corners or length, and no quadrilateral
+				// with a shorter perimeter than a square of the minimum area
+				// can be big enough
+				if (contour.total() < 4) {
+					continue;
+				}
+				double perimeter = opencv_imgproc.cvContourPerimeter(contour);
+				if (perimeter < minPerimeter) {
+					continue;
+				}
+
 				CvSeq poly = opencv_imgproc.cvApproxPoly(contour, Loader.sizeof(CvContour.class), polyStorage,
-						opencv_imgproc.CV_POLY_APPROX_DP, opencv_imgproc.cvContourPerimeter(contour) * epsilon, 0);
+						opencv_imgproc.CV_POLY_APPROX_DP, perimeter * epsilon, 0);
 
 				if (!poly.isNull() && poly.total() == 4 && opencv_imgproc.cvCheckContourConvexity(poly) == 1) {
 					double area = opencv_imgproc.cvContourArea(poly, opencv_core.CV_WHOLE_SEQ, 0);
-					if (area >= areaMin && area <= areaMax && maxAngle(poly) < maxCosine) {
+					if (area >= minArea && area <= maxArea && maxAngle(poly) < maxCosine) {
 						if (showComposite) {
 							opencv_core.cvDrawContours(compositeImage, poly, CvScalar.YELLOW, CvScalar.YELLOW, 1, 2, 0);
 						}
-						opencv_core.cvDrawContours(buildingFeatures, poly, CvScalar.WHITE, CvScalar.WHITE, 1, 1, 0);
+						if (level == 0) {
+							opencv_core.cvDrawContours(target, poly, CvScalar.WHITE, CvScalar.WHITE, 1, 1, 0);
+						} else {
+							drawScaledQuad(target);
+						}
+						addRectangleCentre(rectangles);
+						rectangles++;
 					}
 				}
 			}
@@ -422,12 +906,19 @@ public class MotionDetector extends Processor {
 		}
 
 		CvSeq lines = opencv_imgproc.cvHoughLines2(cannyImage, linesStorage, opencv_imgproc.CV_HOUGH_PROBABILISTIC, 1,
-				Math.PI / 180, houghThreshold, houghMinLineLength, houghMaxGapLength);
+				Math.PI / 180, Math.max(1, (int) Math.round(houghThreshold / lengthScale)), houghMinLineLength
+						/ lengthScale, houghMaxGapLength / lengthScale);
+
+		// Each line is two points, four ints
+		int lineCount = Math.min(lines.total(), MAX_LINES);
+		if (lineCount > 0) {
+			lineSlice.start_index(0).end_index(lineCount);
+			opencv_core.cvCvtSeqToArray(lines, linePoints, lineSlice);
+		}
 
-		for (int i = 0; i < lines.total() && i < MAX_LINES; i++) {
-			Pointer line = opencv_core.cvGetSeqElem(lines, i);
-			CvPoint pt1 = new CvPoint(line.position(0));
-			CvPoint pt2 = new CvPoint(line.position(1));
+		for (int i = 0; i < lineCount; i++) {
+			CvPoint pt1 = lineStart.x(linePoints.get(i * 4)).y(linePoints.get(i * 4 + 1));
+			CvPoint pt2 = lineEnd.x(linePoints.get(i * 4 + 2)).y(linePoints.get(i * 4 + 3));
 
 			// double slopeRadians = Math.atan((double) (pt2.y() - pt1.y()) /
 			// (pt2.x() - pt1.x()));
@@ -440,19 +931,173 @@ public class MotionDetector extends Processor {
 				opencv_core.cvLine(compositeImage, pt1, pt2, CvScalar.BLUE, 2, 0, 0);
 			}
 
-			opencv_core.cvLine(buildingFeatures, pt1, pt2, CvScalar.WHITE, 1, 0, 0);
+			if (level > 0) {
+				scaleUp(pt1);
+				scaleUp(pt2);
+			}
+			opencv_core.cvLine(target, pt1, pt2, CvScalar.WHITE, 1, 0, 0);
 		}
 
-		// Accumulate this frame's rects
-		if (accumulator == null) {
-			accumulator = IplImage.create(buildingFeatures.cvSize(), opencv_core.IPL_DEPTH_32F, 1);
-			opencv_core.cvConvert(buildingFeatures, accumulator);
-		} else {
-			opencv_imgproc.cvRunningAvg(buildingFeatures, accumulator, accumulatorAlpha, null);
+		return rectangles;
+	}
+
+	/**
+	 * Records the centre of the quadrilateral in {@link #quadPoints} as the
+	 * rectangle's.
+	 */
+	private void addRectangleCentre(int rectangle) {
+		if (rectangleCentres.length < (rectangle + 1) * 2) {
+			rectangleCentres = Arrays.copyOf(rectangleCentres, rectangleCentres.length * 2);
 		}
+		rectangleCentres[rectangle * 2] = (quadPoints.get(0) + quadPoints.get(2) + quadPoints.get(4) + quadPoints
+				.get(6)) / 4;
+		rectangleCentres[rectangle * 2 + 1] = (quadPoints.get(1) + quadPoints.get(3) + quadPoints.get(5) + quadPoints
+				.get(7)) / 4;
+	}
+
+	/**
+	 * Draws the quadrilateral in {@link #quadPoints} scaled up from the
+	 * pyramid level.
+	 */
+	private void drawScaledQuad(IplImage target) {
+		for (int corner = 0; corner < 4; corner++) {
+			int next = (corner + 1) % 4;
+			lineStart.x(quadPoints.get(corner * 2)).y(quadPoints.get(corner * 2 + 1));
+			lineEnd.x(quadPoints.get(next * 2)).y(quadPoints.get(next * 2 + 1));
+			opencv_core.cvLine(target, scaleUp(lineStart), scaleUp(lineEnd), CvScalar.WHITE, 1, 8, 0);
+		}
+	}
 
-		// Convert back to 8-bit for further processing
-		opencv_core.cvConvert(accumulator, buildingFeatures);
+	/**
+	 * Moves a point at the pyramid level to the middle of the full size
+	 * pixels it covers.
+	 */
+	private CvPoint scaleUp(CvPoint point) {
+		int half = (1 << level) >> 1;
+		return point.x((point.x() << level) + half).y((point.y() << level) + half);
+	}
+
+	private void putDebugImages(Frame frame) {
+		if (showFeatures) {
+			frame.getDebugImages().put("building features", buildingFeatures);
+		}
+		if (showComposite) {
+			frame.getDebugImages().put("composite", compositeImage);
+		}
+		if (showCanny) {
+			frame.getDebugImages().put("canny", cannyImage);
+		}
+		if (showContours) {
+			frame.getDebugImages().put("contours", contoursImage);
+		}
+	}
+
+	/**
+	 * Blurs and finds edges in every enabled channel, each split into
+	 * {@link #stripes} stripes, all at once on {@link #WORKERS}.
+	 */
+	private void findEdgesInParallel(int height, int stripes) {
+		// A single stripe covers the whole region, however tall it is
+		int tasksHeight = stripes == 1 ? 0 : height;
+		if (stripeTasks == null || stripeTasks.length != 3 * stripes || stripeTasksHeight != tasksHeight) {
+			stripeTasks = new Stripe[3 * stripes];
+			for (int channel = 0; channel < 3; channel++) {
+				for (int i = 0; i < stripes; i++) {
+					stripeTasks[channel * stripes + i] = new Stripe(channel, i * height / stripes, (i + 1) * height
+							/ stripes, stripes == 1);
+				}
+			}
+			stripeTasksHeight = tasksHeight;
+		}
+
+		// The sliders can move while the stripes run; give them all the same
+		// values
+		stripeBlur = blur;
+		kernelSize(stripeBlurSize, blur);
+		stripeCannyLowThreshold = cannyLowThreshold;
+		stripeCannyHighThreshold = cannyHighThreshold;
+
+		enabledStripes.clear();
+		for (Stripe task : stripeTasks) {
+			if (isChannelEnabled(task.channel)) {
+				task.reinitialize();
+				enabledStripes.add(task);
+			}
+		}
+
+		runStripes.reinitialize();
+		WORKERS.invoke(runStripes);
+	}
+
+	/**
+	 * Blur and Canny for one horizontal stripe of one channel.
+	 * <p>
+	 * The stripe is blurred and edge-detected together with enough rows above
+	 * and below that every row it owns sees the same neighbourhood as it would
+	 * in the whole image, then only its own rows are copied into the channel's
+	 * Canny image, so stripes never write over each other. Canny's hysteresis
+	 * can still follow a weak edge across a stripe boundary differently than
+	 * it would on the whole image, but the result doesn't depend on which
+	 * stripe finishes first.
+	 */
+	private final class Stripe extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int channel;
+		private final int top;
+		private final int bottom;
+		private final boolean wholeImage;
+
+		private final CvMat source = new CvMat();
+		private final CvMat ownRows = new CvMat();
+		private final CvMat target = new CvMat();
+		private final CvSize size = new CvSize();
+
+		Stripe(int channel, int top, int bottom, boolean wholeImage) {
+			this.channel = channel;
+			this.top = top;
+			this.bottom = bottom;
+			this.wholeImage = wholeImage;
+		}
+
+		@Override
+		protected void compute() {
+			if (wholeImage) {
+				if (stripeBlur >= 0) {
+					opencv_imgproc.GaussianBlur(channels[channel], channels[channel], stripeBlurSize, 0, 0,
+							opencv_imgproc.BORDER_DEFAULT);
+				}
+				opencv_imgproc.cvCanny(channels[channel], canny[channel], stripeCannyLowThreshold,
+						stripeCannyHighThreshold, 3);
+				return;
+			}
+
+			// Blur radius, plus one row each for the Sobel aperture and
+			// non-maximum suppression
+			int margin = Math.max(stripeBlur, 0) + 2;
+			int from = Math.max(top - margin, 0);
+			int to = Math.min(bottom + margin, channels[channel].height());
+			size.width(channels[channel].width()).height(to - from);
+
+			IplImage blurred = pool.borrow(MotionDetector.this, size, opencv_core.IPL_DEPTH_8U, 1);
+			IplImage edges = pool.borrow(MotionDetector.this, size, opencv_core.IPL_DEPTH_8U, 1);
+			try {
+				opencv_core.cvGetRows(channels[channel], source, from, to, 1);
+				if (stripeBlur >= 0) {
+					opencv_imgproc.GaussianBlur(source, blurred, stripeBlurSize, 0, 0, opencv_imgproc.BORDER_DEFAULT);
+					opencv_imgproc.cvCanny(blurred, edges, stripeCannyLowThreshold, stripeCannyHighThreshold, 3);
+				} else {
+					opencv_imgproc.cvCanny(source, edges, stripeCannyLowThreshold, stripeCannyHighThreshold, 3);
+				}
+
+				opencv_core.cvGetRows(edges, ownRows, top - from, bottom - from, 1);
+				opencv_core.cvGetRows(canny[channel], target, top, bottom, 1);
+				opencv_core.cvCopy(ownRows, target);
+			} finally {
+				pool.release(MotionDetector.this, blurred);
+				pool.release(MotionDetector.this, edges);
+			}
+		}
 	}
 
 	private boolean isChannelEnabled(int channel) {
@@ -467,29 +1112,44 @@ public class MotionDetector extends Processor {
 		throw new RuntimeException("That's not an RGB channel");
 	}
 
+	/**
+	 * @param poly
+	 *            a quadrilateral
+	 */
 	private double maxAngle(CvSeq poly) {
+		opencv_core.cvCvtSeqToArray(poly, quadPoints, opencv_core.CV_WHOLE_SEQ);
+
 		double maxAngle = 0;
 		for (int i = 0; i < 5; i++) {
 			// find minimum angle between joint
 			// edges (maximum of cosine)
 			if (i >= 2) {
-				CvPoint p1 = new CvPoint(opencv_core.cvGetSeqElem(poly, i));
-				CvPoint p2 = new CvPoint(opencv_core.cvGetSeqElem(poly, i - 2));
-				CvPoint p0 = new CvPoint(opencv_core.cvGetSeqElem(poly, i - 1));
-				double angle = Math.abs(angle(p1, p2, p0));
+				double angle = Math.abs(angle(i % 4, i - 2, i - 1));
 				maxAngle = maxAngle > angle ? maxAngle : angle;
 			}
 		}
 		return maxAngle;
 	}
 
-	private double angle(CvPoint pt1, CvPoint pt2, CvPoint pt0) {
-		double dx1 = pt1.x() - pt0.x();
-		double dy1 = pt1.y() - pt0.y();
-		double dx2 = pt2.x() - pt0.x();
-		double dy2 = pt2.y() - pt0.y();
+	/**
+	 * Cosine of the angle at corner 0 of the quadrilateral in
+	 * {@link #quadPoints}.
+	 */
+	private double angle(int corner1, int corner2, int corner0) {
+		double dx1 = quadPoints.get(corner1 * 2) - quadPoints.get(corner0 * 2);
+		double dy1 = quadPoints.get(corner1 * 2 + 1) - quadPoints.get(corner0 * 2 + 1);
+		double dx2 = quadPoints.get(corner2 * 2) - quadPoints.get(corner0 * 2);
+		double dy2 = quadPoints.get(corner2 * 2 + 1) - quadPoints.get(corner0 * 2 + 1);
 		double dotProduct = dx1 * dx2 + dy1 * dy2;
 		double lengthSquared = (dx1 * dx1 + dy1 * dy1) * (dx2 * dx2 + dy2 * dy2);
 		return dotProduct / Math.sqrt(lengthSquared);
 	}
+
+	private static CvSize kernelSize(CvSize size, int radius) {
+		return size.width(radius * 2 + 1).height(radius * 2 + 1);
+	}
+
+	private static IntBuffer newIntBuffer(int capacity) {
+		return ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
 }
@@ -0,0 +1,178 @@
+package com.tinfig.rr.processors;
+
+import java.awt.Container;
+import java.awt.event.ItemEvent;
+import java.awt.event.ItemListener;
+
+import javax.swing.JCheckBox;
+import javax.swing.JSlider;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import org.apache.commons.configuration.ConfigurationException;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvSize;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_imgproc;
+import com.tinfig.rr.ArtifactKey;
+import com.tinfig.rr.Frame;
+import com.tinfig.rr.ImagePool;
+import com.tinfig.rr.Processor;
+import com.tinfig.rr.Settings;
+
+/**
+ * Cheaply decides whether anything moved, so the expensive processors after
+ * it can skip frames where the scene is still.
+ * <p>
+ * A shrunken gray copy of each frame is compared with the one from the last
+ * frame that was processed in full (not simply the previous frame, so slow
+ * changes add up until they're noticed). If too few pixels changed the frame
+ * is marked {@link #STATIC}, and {@link MotionDetector}, {@link FlowDetector},
+ * and {@link FlowTracker} reuse their previous results. Every so often a
+ * frame is processed in full anyway so nothing goes stale for long.
+ */
+public class MotionGate extends Processor {
+	/**
+	 * Boolean, {@link Boolean#TRUE} if nothing moved since the last frame that
+	 * was processed in full
+	 */
+	public static final String ARTIFACT_STATIC = "gate.static";
+	public static final ArtifactKey<Boolean> STATIC = ArtifactKey.register(ARTIFACT_STATIC, Boolean.class);
+
+	/**
+	 * Double, the fraction of (shrunken) pixels that changed
+	 */
+	public static final String ARTIFACT_CHANGED_FRACTION = "gate.changedFraction";
+	public static final ArtifactKey<Double> CHANGED_FRACTION = ArtifactKey.registerDouble(ARTIFACT_CHANGED_FRACTION);
+
+	private static final String ENABLED = "gate.enabled";
+	private static final String SCALE = "gate.scale";
+	private static final String PIXEL_THRESHOLD = "gate.pixelThreshold";
+	private static final String CHANGED_THRESHOLD = "gate.changedThreshold";
+	private static final String MAX_STATIC_FRAMES = "gate.maxStaticFrames";
+
+	private boolean enabled = false;
+	private int scale = 4;
+	private int pixelThreshold = 20;
+	private double changedThreshold = 0.002;
+	private int maxStaticFrames = 30;
+
+	private ImagePool pool;
+	private IplImage small;
+	private IplImage gray;
+	private IplImage reference;
+	private IplImage difference;
+	private boolean haveReference;
+	private int staticFrames;
+
+	@Override
+	public void start(Frame frame, Settings settings) throws ConfigurationException {
+		enabled = settings.getBoolean(ENABLED, enabled);
+		scale = Math.max(1, settings.getInteger(SCALE, scale));
+		pixelThreshold = settings.getInteger(PIXEL_THRESHOLD, pixelThreshold);
+		changedThreshold = settings.getDouble(CHANGED_THRESHOLD, changedThreshold);
+		maxStaticFrames = settings.getInteger(MAX_STATIC_FRAMES, maxStaticFrames);
+		pool = frame.getImagePool();
+
+		Container container = frame.getArtifact(ControlsProcessor.ARTIFACT_CONTROL_CONTAINER, Container.class);
+		if (container != null) {
+			createControls(container);
+		}
+	}
+
+	private void createControls(Container container) {
+		createCheckBox(container, "Skip static frames", enabled, new ItemListener() {
+			@Override
+			public void itemStateChanged(ItemEvent e) {
+				enabled = ((JCheckBox) e.getSource()).isSelected();
+			}
+		});
+		createSlider(container, "Static pixel threshold", 1, 100, pixelThreshold, new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				pixelThreshold = ((JSlider) e.getSource()).getValue();
+			}
+		});
+		createSlider(container, "Static changed pixels (0.01%)", 0, 500, (int) (changedThreshold * 10000),
+				new ChangeListener() {
+					@Override
+					public void stateChanged(ChangeEvent e) {
+						changedThreshold = ((JSlider) e.getSource()).getValue() / 10000.0;
+					}
+				});
+	}
+
+	@Override
+	public void stop(Settings settings) throws ConfigurationException {
+		settings.set(ENABLED, enabled);
+		settings.set(SCALE, scale);
+		settings.set(PIXEL_THRESHOLD, pixelThreshold);
+		settings.set(CHANGED_THRESHOLD, changedThreshold);
+		settings.set(MAX_STATIC_FRAMES, maxStaticFrames);
+
+		if (small != null) {
+			pool.release(this, small);
+			pool.release(this, gray);
+			pool.release(this, reference);
+			pool.release(this, difference);
+			small = null;
+			gray = null;
+			reference = null;
+			difference = null;
+		}
+	}
+
+	@Override
+	public void process(Frame frame) throws ConfigurationException {
+		if (!enabled) {
+			haveReference = false;
+			frame.set(STATIC, Boolean.FALSE);
+			return;
+		}
+
+		IplImage image = frame.getVideoImage();
+		if (small == null) {
+			CvSize size = new CvSize(Math.max(1, image.width() / scale), Math.max(1, image.height() / scale));
+			small = pool.borrow(this, size, image.depth(), image.nChannels());
+			gray = pool.borrow(this, size, opencv_core.IPL_DEPTH_8U, 1);
+			reference = pool.borrow(this, size, opencv_core.IPL_DEPTH_8U, 1);
+			difference = pool.borrow(this, size, opencv_core.IPL_DEPTH_8U, 1);
+		}
+
+		// Area averaging also smooths out sensor noise
+		opencv_imgproc.cvResize(image, small, opencv_imgproc.CV_INTER_AREA);
+		if (small.nChannels() == 1) {
+			opencv_core.cvCopy(small, gray);
+		} else {
+			opencv_imgproc.cvCvtColor(small, gray, opencv_imgproc.CV_BGR2GRAY);
+		}
+
+		boolean isStatic = false;
+		if (haveReference) {
+			opencv_core.cvAbsDiff(gray, reference, difference);
+			opencv_core.cvCmpS(difference, pixelThreshold, difference, opencv_core.CV_CMP_GT);
+			double changed = (double) opencv_core.cvCountNonZero(difference) / (gray.width() * gray.height());
+			frame.setDouble(CHANGED_FRACTION, changed);
+
+			isStatic = changed <= changedThreshold && staticFrames < maxStaticFrames;
+		}
+
+		if (isStatic) {
+			staticFrames++;
+		} else {
+			staticFrames = 0;
+			opencv_core.cvCopy(gray, reference);
+			haveReference = true;
+		}
+		frame.set(STATIC, isStatic ? Boolean.TRUE : Boolean.FALSE);
+	}
+
+	/**
+	 * @return <code>true</code> if the frame was marked static by a
+	 *         {@link MotionGate}
+	 */
+	public static boolean isStatic(Frame frame) {
+		return Boolean.TRUE.equals(frame.get(STATIC));
+	}
+}
@@ -0,0 +1,50 @@
+package com.tinfig.rr.processors;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import com.googlecode.javacpp.Pointer;
+import com.googlecode.javacv.cpp.opencv_core.CvPoint2D32f;
+
+/**
+ * An array of <code>CvPoint2D32f</code> in a direct buffer, so points can be
+ * copied in and out in bulk instead of one native call per coordinate.
+ */
+class NativePoints {
+	private final int capacity;
+	private final FloatBuffer floats;
+	private final CvPoint2D32f points;
+
+	NativePoints(int capacity) {
+		this.capacity = capacity;
+		ByteBuffer bytes = ByteBuffer.allocateDirect(capacity * 2 * 4).order(ByteOrder.nativeOrder());
+		floats = bytes.asFloatBuffer();
+		points = new CvPoint2D32f(new Pointer(bytes));
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public CvPoint2D32f getPoints() {
+		return points;
+	}
+
+	/**
+	 * Copies the first <code>count</code> points of the array in.
+	 */
+	public void put(float[] coordinates, int count) {
+		floats.clear();
+		floats.put(coordinates, 0, count * 2);
+	}
+
+	/**
+	 * Copies the first <code>count</code> points out into the array, starting
+	 * at point <code>index</code> there.
+	 */
+	public void get(float[] coordinates, int index, int count) {
+		floats.clear();
+		floats.get(coordinates, index * 2, count * 2);
+	}
+}
@@ -3,30 +3,28 @@ package com.tinfig.rr.processors;
 import org.apache.commons.configuration.ConfigurationException;
 
 import com.googlecode.javacv.FrameGrabber.Exception;
-import com.googlecode.javacv.OpenCVFrameGrabber;
 import com.googlecode.javacv.cpp.opencv_core;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 import com.tinfig.rr.Frame;
+import com.tinfig.rr.Main;
 import com.tinfig.rr.Processor;
 import com.tinfig.rr.Settings;
+import com.tinfig.rr.sources.FrameSource;
 
 public class OpenCvFrameGrabberProcessor extends Processor {
 
-	private final int camera;
-	private OpenCVFrameGrabber grabber;
+	private final Main main;
+	private final FrameSource source;
 
-	public OpenCvFrameGrabberProcessor(int camera) {
-		this.camera = camera;
+	public OpenCvFrameGrabberProcessor(Main main, FrameSource source) {
+		this.main = main;
+		this.source = source;
 	}
 
 	@Override
 	public void start(Frame frame, Settings settings) throws ConfigurationException {
 		try {
-			grabber = new OpenCVFrameGrabber(camera);
-			grabber.setFrameRate(60);
-			grabber.setImageWidth(600);
-			grabber.setImageHeight(400);
-			grabber.start();
+			source.start();
 		} catch (Exception e) {
 			throw new ConfigurationException(e);
 		}
@@ -35,7 +33,7 @@ public class OpenCvFrameGrabberProcessor extends Processor {
 	@Override
 	public void stop(Settings settings) throws ConfigurationException {
 		try {
-			grabber.stop();
+			source.stop();
 		} catch (Exception e) {
 			throw new ConfigurationException(e);
 		}
@@ -44,15 +42,21 @@ public class OpenCvFrameGrabberProcessor extends Processor {
 	@Override
 	public void process(Frame frame) throws ConfigurationException {
 		try {
-			IplImage grabbed = grabber.grab();
+			IplImage grabbed = source.grab();
+			if (grabbed == null) {
+				System.out.println("End of input for " + source.getName());
+				main.endOfInput(source);
+				return;
+			}
 
 			IplImage image = frame.getVideoImage();
 			if (image == null) {
-				image = IplImage.create(grabbed.cvSize(), grabbed.depth(), grabbed.nChannels());
+				image = frame.getImagePool().borrow(frame, grabbed.cvSize(), grabbed.depth(), grabbed.nChannels());
 				frame.setVideoImage(image);
 			}
 
 			opencv_core.cvCopy(grabbed, image);
+			frame.setTimestamp(source.getTimestamp());
 
 		} catch (Exception e) {
 			throw new ConfigurationException(e);
@@ -0,0 +1,38 @@
+package com.tinfig.rr.processors;
+
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_imgproc;
+
+/**
+ * Shi-Tomasi corners from <code>cvGoodFeaturesToTrack</code>.
+ */
+class ShiTomasiDetector implements FeatureDetector {
+	private NativePoints found = new NativePoints(1);
+	private final int[] count = new int[1];
+	private double qualityLevel = 0.01;
+
+	/**
+	 * @param qualityLevel
+	 *            the weakest corner kept, as a fraction of the strongest
+	 */
+	public void setQualityLevel(double qualityLevel) {
+		this.qualityLevel = qualityLevel;
+	}
+
+	/**
+	 * OpenCV reads the region of interest from the images itself.
+	 */
+	@Override
+	public int detect(IplImage image, IplImage mask, CvRect region, int max, double minDistance, float[] points) {
+		if (found.getCapacity() < max) {
+			found = new NativePoints(max);
+		}
+
+		count[0] = max;
+		opencv_imgproc.cvGoodFeaturesToTrack(image, null, null, found.getPoints(), count, qualityLevel, minDistance,
+				mask, 3, 0, 0.04);
+		found.get(points, 0, count[0]);
+		return count[0];
+	}
+}
@@ -0,0 +1,162 @@
+package com.tinfig.rr.sources;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.googlecode.javacv.FrameGrabber;
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * Grabs from another source on a dedicated capture thread so camera I/O
+ * overlaps with processing.
+ * <p>
+ * Captured images go into a lock-free triple buffer: the capture thread owns
+ * one slot, the reader owns another, and the third holds the most recent
+ * complete image. {@link #grab()} always returns the freshest image; images
+ * the reader never picked up are counted as dropped instead of queueing up
+ * behind a slow pipeline.
+ */
+public class AsyncFrameSource implements FrameSource {
+	private static final int SLOTS = 3;
+	private static final int INDEX_MASK = 0x3;
+	private static final int FRESH = 0x4;
+
+	private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final FrameSource source;
+	private final IplImage[] slots = new IplImage[SLOTS];
+	private final long[] timestamps = new long[SLOTS];
+
+	/**
+	 * Index of the slot holding the latest complete image, plus the
+	 * {@link #FRESH} bit when the reader hasn't taken it yet.
+	 */
+	private final AtomicInteger ready = new AtomicInteger(0);
+	private int writeIndex = 1;
+	private int readIndex = 2;
+
+	private Thread captureThread;
+	private volatile Thread readerThread;
+	private volatile boolean running;
+	private volatile boolean finished;
+	private volatile FrameGrabber.Exception error;
+
+	private volatile long capturedFrames;
+	private volatile long droppedFrames;
+
+	public AsyncFrameSource(FrameSource source) {
+		this.source = source;
+	}
+
+	@Override
+	public String getName() {
+		return source.getName();
+	}
+
+	@Override
+	public void start() throws FrameGrabber.Exception {
+		source.start();
+
+		running = true;
+		captureThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				capture();
+			}
+		}, "capture-" + getName());
+		captureThread.setDaemon(true);
+		captureThread.start();
+	}
+
+	@Override
+	public void stop() throws FrameGrabber.Exception {
+		running = false;
+		try {
+			captureThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		source.stop();
+
+		for (int i = 0; i < slots.length; i++) {
+			if (slots[i] != null) {
+				slots[i].release();
+				slots[i] = null;
+			}
+		}
+
+		System.out.println(getName() + ": dropped " + droppedFrames + " of " + capturedFrames + " captured frames");
+	}
+
+	@Override
+	public IplImage grab() throws FrameGrabber.Exception {
+		readerThread = Thread.currentThread();
+
+		while ((ready.get() & FRESH) == 0) {
+			if (error != null) {
+				throw error;
+			}
+			if (finished || !running || Thread.currentThread().isInterrupted()) {
+				return null;
+			}
+			LockSupport.parkNanos(this, WAIT_NANOS);
+		}
+
+		// Only the capture thread sets FRESH, so the slot we swap out is fresh
+		readIndex = ready.getAndSet(readIndex) & INDEX_MASK;
+		return slots[readIndex];
+	}
+
+	@Override
+	public long getTimestamp() {
+		return timestamps[readIndex];
+	}
+
+	public long getCapturedFrames() {
+		return capturedFrames;
+	}
+
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	private void capture() {
+		try {
+			while (running) {
+				IplImage grabbed = source.grab();
+				if (grabbed == null) {
+					break;
+				}
+
+				if (slots[0] == null) {
+					for (int i = 0; i < slots.length; i++) {
+						slots[i] = IplImage.create(grabbed.cvSize(), grabbed.depth(), grabbed.nChannels());
+					}
+				}
+
+				opencv_core.cvCopy(grabbed, slots[writeIndex]);
+				timestamps[writeIndex] = source.getTimestamp();
+				capturedFrames++;
+
+				// Publish, and take back whichever slot was published before
+				int previous = ready.getAndSet(writeIndex | FRESH);
+				writeIndex = previous & INDEX_MASK;
+				if ((previous & FRESH) != 0) {
+					droppedFrames++;
+				}
+
+				Thread reader = readerThread;
+				if (reader != null) {
+					LockSupport.unpark(reader);
+				}
+			}
+		} catch (FrameGrabber.Exception e) {
+			error = e;
+		} finally {
+			finished = true;
+		}
+	}
+}
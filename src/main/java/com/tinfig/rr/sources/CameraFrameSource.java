@@ -0,0 +1,49 @@
+package com.tinfig.rr.sources;
+
+import com.googlecode.javacv.FrameGrabber;
+import com.googlecode.javacv.OpenCVFrameGrabber;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * Grabs images from a live camera.
+ */
+public class CameraFrameSource implements FrameSource {
+	private final int device;
+	private OpenCVFrameGrabber grabber;
+	private long timestamp;
+
+	public CameraFrameSource(int device) {
+		this.device = device;
+	}
+
+	@Override
+	public String getName() {
+		return Integer.toString(device);
+	}
+
+	@Override
+	public void start() throws FrameGrabber.Exception {
+		grabber = new OpenCVFrameGrabber(device);
+		grabber.setFrameRate(60);
+		grabber.setImageWidth(600);
+		grabber.setImageHeight(400);
+		grabber.start();
+	}
+
+	@Override
+	public void stop() throws FrameGrabber.Exception {
+		grabber.stop();
+	}
+
+	@Override
+	public IplImage grab() throws FrameGrabber.Exception {
+		IplImage image = grabber.grab();
+		timestamp = System.nanoTime();
+		return image;
+	}
+
+	@Override
+	public long getTimestamp() {
+		return timestamp;
+	}
+}
@@ -0,0 +1,34 @@
+package com.tinfig.rr.sources;
+
+import com.googlecode.javacv.FrameGrabber;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * Supplies video images to the processor pipeline. Implementations may read
+ * from a live camera or replay recorded input.
+ */
+public interface FrameSource {
+	/**
+	 * @return a short name for the source, used for window titles and the
+	 *         settings file name
+	 */
+	String getName();
+
+	void start() throws FrameGrabber.Exception;
+
+	void stop() throws FrameGrabber.Exception;
+
+	/**
+	 * Gets the next image. The returned image is owned by the source and is
+	 * only valid until the next call to this method.
+	 * 
+	 * @return the next image, or <code>null</code> if there is no more input
+	 */
+	IplImage grab() throws FrameGrabber.Exception;
+
+	/**
+	 * @return the {@link System#nanoTime()} when the image last returned by
+	 *         {@link #grab()} was captured
+	 */
+	long getTimestamp();
+}
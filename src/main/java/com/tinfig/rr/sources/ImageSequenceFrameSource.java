@@ -0,0 +1,87 @@
+package com.tinfig.rr.sources;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+
+import com.googlecode.javacv.FrameGrabber;
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_highgui;
+
+/**
+ * Replays a directory of still images (PNG or JPEG) in file name order.
+ */
+public class ImageSequenceFrameSource extends ReplayFrameSource {
+	private final File directory;
+	private final double recordedFrameRate;
+
+	private File[] files;
+	private int index;
+	private IplImage image;
+
+	public ImageSequenceFrameSource(File directory, double recordedFrameRate) {
+		this.directory = directory;
+		this.recordedFrameRate = recordedFrameRate;
+	}
+
+	@Override
+	public String getName() {
+		return directory.getName();
+	}
+
+	@Override
+	public void start() throws FrameGrabber.Exception {
+		files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File pathname) {
+				String lowerName = pathname.getName().toLowerCase();
+				return lowerName.endsWith(".png") || lowerName.endsWith(".jpg") || lowerName.endsWith(".jpeg");
+			}
+		});
+		if (files == null || files.length == 0) {
+			throw new FrameGrabber.Exception("No images found in " + directory);
+		}
+		Arrays.sort(files);
+		index = 0;
+	}
+
+	@Override
+	public void stop() throws FrameGrabber.Exception {
+		releaseImage();
+	}
+
+	@Override
+	protected IplImage grabNext() throws FrameGrabber.Exception {
+		if (index >= files.length) {
+			return null;
+		}
+
+		releaseImage();
+
+		File file = files[index++];
+		image = opencv_highgui.cvLoadImage(file.getPath(), opencv_highgui.CV_LOAD_IMAGE_COLOR);
+		if (image == null || image.isNull()) {
+			image = null;
+			throw new FrameGrabber.Exception("Could not load image " + file);
+		}
+		return image;
+	}
+
+	@Override
+	protected void rewind() {
+		index = 0;
+	}
+
+	@Override
+	protected double getRecordedFrameRate() {
+		return recordedFrameRate;
+	}
+
+	private void releaseImage() {
+		if (image != null) {
+			opencv_core.cvReleaseImage(image);
+			image = null;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.tinfig.rr.sources;
+
+/**
+ * How fast a {@link ReplayFrameSource} delivers its images.
+ */
+public enum Pacing {
+	/**
+	 * As fast as the pipeline asks for them (measures maximum throughput).
+	 */
+	NATIVE,
+
+	/**
+	 * At a fixed frame rate chosen on the command line.
+	 */
+	FIXED,
+
+	/**
+	 * At the frame rate the input was recorded at.
+	 */
+	REALTIME
+}
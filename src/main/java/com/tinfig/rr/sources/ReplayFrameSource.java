@@ -0,0 +1,102 @@
+package com.tinfig.rr.sources;
+
+import com.googlecode.javacv.FrameGrabber;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.tinfig.rr.Check;
+
+/**
+ * Base class for sources that replay recorded input. Handles pacing and
+ * looping so the same input can drive repeatable profiling runs.
+ */
+public abstract class ReplayFrameSource implements FrameSource {
+	private Pacing pacing = Pacing.NATIVE;
+	private double fixedFrameRate = 30;
+	private boolean loop;
+
+	private long nextFrameNanos;
+	private long timestamp;
+
+	public void setPacing(Pacing pacing, double fixedFrameRate) {
+		Check.notNull(pacing, "pacing");
+		Check.isTrue(pacing != Pacing.FIXED || fixedFrameRate > 0, "fixed frame rate must be > 0");
+		this.pacing = pacing;
+		this.fixedFrameRate = fixedFrameRate;
+	}
+
+	public Pacing getPacing() {
+		return pacing;
+	}
+
+	public void setLoop(boolean loop) {
+		this.loop = loop;
+	}
+
+	@Override
+	public IplImage grab() throws FrameGrabber.Exception {
+		IplImage image = grabNext();
+		if (image == null && loop) {
+			rewind();
+			image = grabNext();
+		}
+
+		if (image != null) {
+			// Count the replayed frame as captured when it is due
+			waitForFrameTime();
+			timestamp = System.nanoTime();
+		}
+		return image;
+	}
+
+	@Override
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the next image, or <code>null</code> at the end of the input
+	 */
+	protected abstract IplImage grabNext() throws FrameGrabber.Exception;
+
+	/**
+	 * Restarts the input from the beginning.
+	 */
+	protected abstract void rewind() throws FrameGrabber.Exception;
+
+	/**
+	 * @return the frame rate the input was recorded at
+	 */
+	protected abstract double getRecordedFrameRate();
+
+	private void waitForFrameTime() {
+		double frameRate;
+		switch (pacing) {
+		case FIXED:
+			frameRate = fixedFrameRate;
+			break;
+		case REALTIME:
+			frameRate = getRecordedFrameRate();
+			break;
+		default:
+			return;
+		}
+
+		long now = System.nanoTime();
+		long period = (long) (1000000000L / frameRate);
+
+		// Don't try to catch up if we fell behind, just start pacing again
+		if (nextFrameNanos == 0 || now - nextFrameNanos > period) {
+			nextFrameNanos = now;
+		}
+
+		long sleepNanos = nextFrameNanos - now;
+		if (sleepNanos > 0) {
+			try {
+				Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		nextFrameNanos += period;
+	}
+}
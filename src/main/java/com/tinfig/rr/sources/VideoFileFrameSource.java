@@ -0,0 +1,76 @@
+package com.tinfig.rr.sources;
+
+import java.io.File;
+
+import com.googlecode.javacv.FrameGrabber;
+import com.googlecode.javacv.OpenCVFrameGrabber;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * Replays a video file.
+ */
+public class VideoFileFrameSource extends ReplayFrameSource {
+	private static final double DEFAULT_FRAME_RATE = 30;
+
+	private final File file;
+	private OpenCVFrameGrabber grabber;
+	// Frames grabbed since starting or rewinding
+	private int framesRead;
+
+	public VideoFileFrameSource(File file) {
+		this.file = file;
+	}
+
+	@Override
+	public String getName() {
+		return file.getName();
+	}
+
+	@Override
+	public void start() throws FrameGrabber.Exception {
+		grabber = new OpenCVFrameGrabber(file);
+		grabber.start();
+		framesRead = 0;
+	}
+
+	@Override
+	public void stop() throws FrameGrabber.Exception {
+		grabber.stop();
+	}
+
+	@Override
+	protected IplImage grabNext() throws FrameGrabber.Exception {
+		int length = grabber.getLengthInFrames();
+		if (length > 0 && grabber.getFrameNumber() >= length) {
+			return null;
+		}
+
+		// Many containers don't know their length, or only roughly, and the
+		// grabber throws rather than returning null at the end of them
+		IplImage image;
+		try {
+			image = grabber.grab();
+		} catch (FrameGrabber.Exception e) {
+			if (framesRead == 0) {
+				throw e;
+			}
+			return null;
+		}
+		if (image != null) {
+			framesRead++;
+		}
+		return image;
+	}
+
+	@Override
+	protected void rewind() throws FrameGrabber.Exception {
+		grabber.setFrameNumber(0);
+		framesRead = 0;
+	}
+
+	@Override
+	protected double getRecordedFrameRate() {
+		double frameRate = grabber.getFrameRate();
+		return frameRate > 0 ? frameRate : DEFAULT_FRAME_RATE;
+	}
+}
@@ -0,0 +1,134 @@
+package com.tinfig.rr.processors;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvPoint;
+import com.googlecode.javacv.cpp.opencv_core.CvScalar;
+import com.googlecode.javacv.cpp.opencv_core.CvSize;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.tinfig.rr.Frame;
+import com.tinfig.rr.ImagePool;
+import com.tinfig.rr.Settings;
+import com.tinfig.rr.bench.Benchmarks;
+
+/**
+ * Replays a short clip through {@link MotionDetector} and checks how much it
+ * allocates on the Java heap per frame once it has warmed up.
+ * <p>
+ * The clip is generated: a few rectangles drifting across a gray background,
+ * so there are edges and contours to find. JavaCV still wraps each contour
+ * and line sequence OpenCV hands back in a new object, so the bound leaves
+ * room for those, but not for anything that grows with the image size.
+ * <p>
+ * Needs the OpenCV native libraries, and fails if they can't be loaded. The
+ * build leaves it out unless run with <code>-Dopencv=true</code>.
+ */
+public class MotionDetectorAllocationTest extends TestCase {
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+	private static final int CLIP_FRAMES = 30;
+	private static final int WARMUP_FRAMES = 60;
+	private static final int MEASURED_FRAMES = 120;
+
+	// Bytes per frame
+	private static final long ALLOCATION_BOUND = 16 * 1024;
+
+	private ImagePool pool;
+	private List<IplImage> clip;
+
+	@Override
+	protected void setUp() throws Exception {
+		try {
+			clip = makeClip();
+		} catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+			fail("The OpenCV native libraries couldn't be loaded: " + e);
+		}
+		pool = new ImagePool();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (clip != null) {
+			for (IplImage image : clip) {
+				image.release();
+			}
+		}
+		if (pool != null) {
+			pool.clear();
+		}
+	}
+
+	public void testDefaultSettings() throws Exception {
+		assertAllocationBound(Benchmarks.loadSettings(null));
+	}
+
+	public void testTiledPyramid() throws Exception {
+		Settings settings = Benchmarks.loadSettings(null);
+		settings.set("rectangle.tiled", true);
+		settings.set("rectangle.pyramidLevel", 1);
+		assertAllocationBound(settings);
+	}
+
+	private void assertAllocationBound(Settings settings) throws Exception {
+		Frame frame = new Frame();
+		frame.setName("Allocation");
+		frame.setImagePool(pool);
+		frame.setVideoImage(pool.borrow(frame, clip.get(0).cvSize(), opencv_core.IPL_DEPTH_8U, 3));
+
+		MotionDetector detector = new MotionDetector();
+		detector.start(frame, settings);
+		try {
+			for (int i = 0; i < WARMUP_FRAMES; i++) {
+				process(detector, frame, i);
+			}
+
+			long start = allocatedBytes();
+			for (int i = 0; i < MEASURED_FRAMES; i++) {
+				process(detector, frame, i);
+			}
+			long perFrame = (allocatedBytes() - start) / MEASURED_FRAMES;
+
+			assertTrue("Allocated " + perFrame + " bytes per frame, more than " + ALLOCATION_BOUND,
+					perFrame <= ALLOCATION_BOUND);
+		} finally {
+			detector.stop(settings);
+			pool.releaseAll(frame);
+		}
+	}
+
+	private void process(MotionDetector detector, Frame frame, int index) throws Exception {
+		opencv_core.cvCopy(clip.get(index % clip.size()), frame.getVideoImage());
+		detector.process(frame);
+	}
+
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static List<IplImage> makeClip() {
+		List<IplImage> frames = new ArrayList<>();
+		CvSize size = new CvSize(WIDTH, HEIGHT);
+		CvPoint from = new CvPoint();
+		CvPoint to = new CvPoint();
+		CvScalar background = opencv_core.cvScalarAll(128);
+		for (int i = 0; i < CLIP_FRAMES; i++) {
+			IplImage image = IplImage.create(size, opencv_core.IPL_DEPTH_8U, 3);
+			opencv_core.cvSet(image, background);
+			for (int r = 0; r < 4; r++) {
+				int x = 20 + r * 70 + (i * (r + 1)) % 30;
+				int y = 30 + r * 40 + i % 20;
+				opencv_core.cvRectangle(image, from.x(x).y(y), to.x(x + 40).y(y + 30), CvScalar.WHITE,
+						opencv_core.CV_FILLED, 8, 0);
+			}
+			frames.add(image);
+		}
+		return frames;
+	}
+}